@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.checksum.BSD;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksums over a block of random bytes, on heap and in a direct
+ * buffer.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBench {
+
+    @Param({"1048576"})
+    public int size;
+
+    private byte[] array;
+    private ByteBuffer direct;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        array = new byte[size];
+        new Random(0).nextBytes(array);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(array);
+    }
+
+    @Benchmark
+    public long bsdPerByte() {
+        BSD cs;
+        int i;
+
+        cs = new BSD();
+        for (i = 0; i < array.length; i++) {
+            cs.update(array[i]);
+        }
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long bsdArray() {
+        BSD cs;
+
+        cs = new BSD();
+        cs.update(array, 0, array.length);
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long bsdDirect() {
+        BSD cs;
+
+        cs = new BSD();
+        direct.clear();
+        cs.update(direct);
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long crc32Array() {
+        CRC32 cs;
+
+        cs = new CRC32();
+        cs.update(array, 0, array.length);
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long crc32Direct() {
+        CRC32 cs;
+
+        cs = new CRC32();
+        direct.clear();
+        cs.update(direct);
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long adler32Array() {
+        Adler32 cs;
+
+        cs = new Adler32();
+        cs.update(array, 0, array.length);
+        return cs.getValue();
+    }
+
+    @Benchmark
+    public long adler32Direct() {
+        Adler32 cs;
+
+        cs = new Adler32();
+        direct.clear();
+        cs.update(direct);
+        return cs.getValue();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.util.Digest;
+import com.stellaris.util.DigestService;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing a single script file, and all script files of the tree.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestBench {
+
+    private static final DigestService CRC32 = new DigestService(DigestService.CRC32);
+    private static final DigestService ADLER32 = new DigestService(DigestService.ADLER32);
+
+    private List<File> files;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState state) {
+        int i;
+
+        files = new ArrayList<>(state.fileCount);
+        for (i = 0; i < state.fileCount; i++) {
+            files.add(state.getScript(i));
+        }
+    }
+
+    @Benchmark
+    public byte[] md5(TreeState state) {
+        return new Digest(state.getScript(0)).getResult();
+    }
+
+    @Benchmark
+    public byte[] crc32(TreeState state) {
+        return CRC32.digest(state.getScript(0));
+    }
+
+    @Benchmark
+    public byte[] adler32(TreeState state) {
+        return ADLER32.digest(state.getScript(0));
+    }
+
+    @Benchmark
+    public byte[][] md5Tree() {
+        return DigestService.getDefault().digest(files, 1);
+    }
+
+    @Benchmark
+    public byte[][] md5TreeParallel() {
+        return DigestService.getDefault().digest(files,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public byte[][] crc32Tree() {
+        return CRC32.digest(files, 1);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.ScriptLexer;
+import com.stellaris.io.AbstractLexer;
+import com.stellaris.util.BOMReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Line splitting and tokenizing of a single script file.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LexerBench {
+
+    private static final class LineLexer extends AbstractLexer {
+
+        LineLexer(Reader in) throws IOException {
+            super(in);
+        }
+
+        LineLexer(CharBuffer in) {
+            super(in);
+        }
+
+        int drain() throws IOException {
+            int count;
+
+            count = 0;
+            while (nextLine() != null) {
+                ++count;
+            }
+            return count;
+        }
+    }
+
+    @Benchmark
+    public int nextLine(TreeState state) throws IOException {
+        try (LineLexer lexer = new LineLexer(new BOMReader(state.getScript(0)));) {
+            return lexer.drain();
+        }
+    }
+
+    @Benchmark
+    public int nextLineMapped(TreeState state) throws IOException {
+        try (LineLexer lexer = new LineLexer(AbstractLexer.map(state.getScript(0)));) {
+            return lexer.drain();
+        }
+    }
+
+    @Benchmark
+    public int nextToken(TreeState state) throws IOException {
+        int count;
+
+        count = 0;
+        try (ScriptLexer lexer = new ScriptLexer(state.getScript(0));) {
+            while (lexer.hasNextToken()) {
+                lexer.nextToken();
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int nextMapped(TreeState state) throws IOException {
+        File file;
+        int count;
+
+        file = state.getScript(0);
+        count = 0;
+        try (ScriptLexer lexer = new ScriptLexer(AbstractLexer.map(file));) {
+            while (lexer.hasNextToken()) {
+                lexer.next();
+                ++count;
+            }
+        }
+        return count;
+    }
+}
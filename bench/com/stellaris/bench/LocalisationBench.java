@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.localisation.LangFileReader;
+import com.stellaris.localisation.LangFilter;
+import com.stellaris.localisation.LangFilterFactory;
+import com.stellaris.localisation.LocalisationMap;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a localisation file into a fresh map.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocalisationBench {
+
+    @Benchmark
+    public LocalisationMap loadInto(TreeState state) throws IOException {
+        LangFilter filter;
+        LocalisationMap map;
+        LangFileReader reader;
+
+        filter = LangFilterFactory.LANG_ENGLISH;
+        map = new LocalisationMap(filter);
+        reader = new LangFileReader(filter, state.getLocalisation());
+        reader.loadInto(map);
+        return map;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.ScriptParser;
+import com.stellaris.script.AstStore;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a single script file into a fresh context, with the former
+ * recursive parser as baseline.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBench {
+
+    /**
+     * Both parsers must build the same tree, otherwise the comparison
+     * is meaningless.
+     */
+    @Setup(Level.Trial)
+    public void setUp(TreeState state) {
+        File file;
+        ScriptContext expected, actual;
+        byte[] a, b;
+
+        file = state.getScript(0);
+        expected = newContext();
+        BaselineParser.parse(file, expected);
+        actual = newContext();
+        ScriptParser.newInstance(file, actual);
+        a = AstStore.encode(expected.getBindings(ScriptContext.GLOBAL_SCOPE));
+        b = AstStore.encode(actual.getBindings(ScriptContext.GLOBAL_SCOPE));
+        if (!Arrays.equals(a, b)) {
+            throw new IllegalStateException(
+                    "Parsers disagree on " + file.getPath());
+        }
+    }
+
+    @Benchmark
+    public ScriptContext newInstance(TreeState state) {
+        ScriptContext context;
+
+        context = newContext();
+        ScriptParser.newInstance(state.getScript(0), context);
+        return context;
+    }
+
+    @Benchmark
+    public ScriptContext baseline(TreeState state) {
+        ScriptContext context;
+
+        context = newContext();
+        BaselineParser.parse(state.getScript(0), context);
+        return context;
+    }
+
+    private static ScriptContext newContext() {
+        ScriptContext context;
+
+        context = new SimpleScriptContext();
+        context.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+        return context;
+    }
+}
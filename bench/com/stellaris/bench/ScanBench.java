@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.Stellaris;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full scan of the synthetic game tree, and incremental rescan of
+ * the unchanged tree.
+ *
+ * @author donizyo
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBench {
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Stellaris scanned;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState state) {
+        scanned = state.newStellaris();
+        scanned.init(state.root.getPath());
+        scanned.setParallelism(parallelism);
+        // remember digests of all files
+        scanned.scan(false);
+    }
+
+    @Benchmark
+    public Stellaris scan(TreeState state) {
+        Stellaris st;
+
+        st = state.newStellaris();
+        st.init(state.root.getPath());
+        st.setParallelism(parallelism);
+        Stellaris.setDefault(st);
+        st.scan(true);
+        return st;
+    }
+
+    @Benchmark
+    public int rescan() {
+        scanned.scan(false);
+        return scanned.getReparsedCount();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.bench;
+
+import com.stellaris.Stellaris;
+import com.stellaris.script.AstStore;
+import com.stellaris.test.CorpusGenerator;
+import com.stellaris.util.DigestStore;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic game tree shared by all benchmarks of a trial.
+ *
+ * @author donizyo
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+
+    @Param({"32"})
+    public int fileCount;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    @Param({"4"})
+    public int depth;
+
+    private File base;
+    File root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CorpusGenerator generator;
+        Stellaris st;
+
+        base = Files.createTempDirectory("stellaris-bench").toFile();
+        generator = new CorpusGenerator();
+        generator.setFileCount(fileCount);
+        generator.setFileSize(fileSize);
+        generator.setDepth(depth);
+        generator.setModCount(0);
+        generator.generate(base);
+        root = CorpusGenerator.getGameRoot(base);
+        // script files are only parsed as core files under the game root
+        st = newStellaris();
+        st.init(root.getPath());
+        Stellaris.setDefault(st);
+    }
+
+    /**
+     *
+     * @return an instance whose stores are kept in the temporary
+     * directory, so nothing left by earlier runs is read
+     */
+    Stellaris newStellaris() {
+        return new Stellaris(
+                new DigestStore(new File(base, "stellaris.dig"),
+                        new File(base, "stellaris.dig.journal")),
+                new AstStore(new File(base, "stellaris.ast")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Stellaris.setDefault(null);
+        delete(base);
+    }
+
+    File getScript(int index) {
+        return CorpusGenerator.getScriptFile(root, index);
+    }
+
+    File getLocalisation() {
+        return CorpusGenerator.getLocalisationFile(root, 0);
+    }
+
+    private static void delete(File file) {
+        File[] children;
+
+        children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
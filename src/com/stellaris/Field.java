@@ -16,9 +16,10 @@
  */
 package com.stellaris;
 
-import java.util.Objects;
-
 /**
+ * Path of a field, like {@code ship_size.modifier.armor}.
+ *
+ * Hash code and equality cover the full path; the hash is computed once.
  *
  * @author donizyo
  */
@@ -27,6 +28,8 @@ public final class Field {
     public static final char SEPERATOR = '.';
     private final Field parent;
     private final String name;
+    private final int hash;
+    private String path;
 
     public Field(Field parent, String name) {
         if (name == null) {
@@ -34,6 +37,9 @@ public final class Field {
         }
         this.parent = parent;
         this.name = name;
+        hash = parent == null
+                ? name.hashCode()
+                : 31 * parent.hash + name.hashCode();
     }
 
     public Field getParent() {
@@ -48,30 +54,31 @@ public final class Field {
         return name;
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb;
-
-        if (parent == null) {
-            return name;
+    /**
+     *
+     * @return names from the top-level field down, separated by
+     * {@link #SEPERATOR}
+     */
+    public String getPath() {
+        String res;
+
+        res = path;
+        if (res == null) {
+            res = parent == null
+                    ? name
+                    : parent.getPath() + SEPERATOR + name;
+            path = res;
         }
-        sb = new StringBuilder();
-        sb.append(parent.getName());
-        sb.append(SEPERATOR);
-        sb.append(name);
+        return res;
+    }
 
-        return sb.toString();
+    @Override
+    public String toString() {
+        return getPath();
     }
 
     @Override
     public int hashCode() {
-        int hash;
-        String pn;
-
-        hash = 5;
-        pn = getParentName();
-        hash = 89 * hash + Objects.hashCode(pn);
-        hash = 89 * hash + Objects.hashCode(name);
         return hash;
     }
 
@@ -84,23 +91,21 @@ public final class Field {
     }
 
     public boolean equals(Field field) {
-        String mp;
-        String mn;
-        String fp;
-        String fn;
-
-        if (this == field) {
-            return true;
+        Field a, b;
+
+        a = this;
+        b = field;
+        while (a != b) {
+            if (a == null || b == null) {
+                return false;
+            }
+            if (a.hash != b.hash
+                    || !a.name.equals(b.name)) {
+                return false;
+            }
+            a = a.parent;
+            b = b.parent;
         }
-        if (field == null) {
-            return false;
-        }
-
-        mp = getParentName();
-        fp = field.getParentName();
-        mn = getName();
-        fn = field.getName();
-
-        return mp == null ? mp == null : mp.equals(fp) && mn.equals(fn);
+        return true;
     }
 }
@@ -22,6 +22,7 @@ import java.util.*;
 import javax.script.*;
 
 /**
+ * Types bound to field names.
  *
  * @author donizyo
  */
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import javax.script.Bindings;
+
+/**
+ * Parses a range of script files into isolated per-file bindings.
+ *
+ * The range is split in halves until a single file remains, so idle
+ * workers of the pool can steal the other half. Results are stored by
+ * index and merged by the caller in file order; files whose results
+ * are already present are skipped.
+ *
+ * @author donizyo
+ */
+class ScanTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Stellaris stellaris;
+    private final List<File> files;
+    private final Bindings[] results;
+    private final boolean cache;
+    private final int src, dst;
+
+    ScanTask(Stellaris stellaris, List<File> files, Bindings[] results,
+            boolean cache) {
+        this(stellaris, files, results, cache, 0, files.size());
+    }
+
+    private ScanTask(Stellaris stellaris, List<File> files, Bindings[] results,
+            boolean cache, int src, int dst) {
+        this.stellaris = stellaris;
+        this.files = files;
+        this.results = results;
+        this.cache = cache;
+        this.src = src;
+        this.dst = dst;
+    }
+
+    @Override
+    protected void compute() {
+        int mid;
+        File file;
+
+        if (dst - src > 1) {
+            mid = (src + dst) >>> 1;
+            invokeAll(new ScanTask(stellaris, files, results, cache, src, mid),
+                    new ScanTask(stellaris, files, results, cache, mid, dst));
+            return;
+        }
+        if (src == dst || results[src] != null) {
+            return;
+        }
+        file = files.get(src);
+        // keep partial bindings of a broken file,
+        // just as the sequential scan does
+        results[src] = stellaris.parse(file, cache);
+    }
+}
@@ -75,24 +75,26 @@ public class ScriptFilter implements FileFilter {
         return dirs;
     }
 
+    /**
+     *
+     * @param name file name
+     * @return whether the name ends with one of the suffixes
+     */
+    protected boolean matches(String name) {
+        for (String suffix : ext) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean accept(File file) {
-        String name;
-        Set<String> s;
-        Queue<File> q;
-
-        s = ext;
-        q = files;
         if (file.isDirectory()) {
             dirs.add(file);
-        } else if (file.isFile()) {
-            name = file.getName();
-            for (String suffix : s) {
-                if (name.endsWith(suffix)) {
-                    q.add(file);
-                    break;
-                }
-            }
+        } else if (file.isFile() && matches(file.getName())) {
+            files.add(file);
         }
         return false;
     }
@@ -37,8 +37,14 @@ public final class ScriptLexer extends AbstractLexer {
     private static final int BUFFER_SIZE = 65536;
     private static final int CACHE_SIZE = 3;
 
-    private LinkedList<Token> queue;
-    private SortedMap<Integer, Queue<Token>> map;
+    private TokenQueue queue;
+    // decoded input of the mapped mode, null when reading from a Reader
+    private char[] source;
+    // the token returned by next()
+    private int curKind, curStart, curLength, curLine;
+    private String curText;
+    // reusable buffers of the per-line self check
+    private StringBuilder lineBuilder, lexBuilder;
     private int cl, cr;
     //private final List<Integer> slbl = new LinkedList<>();
 
@@ -51,30 +57,37 @@ public final class ScriptLexer extends AbstractLexer {
                 ? (BufferedReader) in
                 : new BufferedReader(in),
                 BUFFER_SIZE);
-        queue = new LinkedList<>();
-        map = new TreeMap<>();
+        init();
+    }
+
+    /**
+     * Lex a decoded input buffer
+     *
+     * @param in
+     * @see AbstractLexer#map(File)
+     */
+    public ScriptLexer(CharBuffer in) {
+        super(in);
+        init();
+        // offsets into the decoded input stay valid until EOF,
+        // so token text can be created on demand
+        source = in.array();
+        queue.setSource(source);
+    }
+
+    private void init() {
+        queue = new TokenQueue();
+        lineBuilder = new StringBuilder();
+        lexBuilder = new StringBuilder();
         cl = 0;
         cr = 0;
     }
 
     public void skipCurrentLine() {
-        int idx;
-        Queue<Token> q;
-        SortedMap<Integer, Queue<Token>> m;
-        Queue<Token> p;
-
         Debug.err.format("[INFO]\tSkip current line!%n");
 
-        m = map;
-        idx = m.firstKey();
-        q = queue;
-        // line - token mapping
-        m = map;
         // retrieve all tokens in this line
-        p = m.remove(idx);
-        if (p != null) {
-            q.removeAll(p);
-        }
+        queue.removeLine();
     }
 
     private boolean hasRemaining() {
@@ -90,14 +103,12 @@ public final class ScriptLexer extends AbstractLexer {
 
     private boolean cache(int count)
             throws IOException, TokenException {
-        Queue<Token> q;
-        Map<Integer, Queue<Token>> m;
+        TokenQueue q;
         boolean res;
 
         q = queue;
-        m = map;
         while (q.size() < count) {
-            res = tokenize(q, m);
+            res = tokenize(q);
             if (!res) {
                 break;
             }
@@ -109,17 +120,9 @@ public final class ScriptLexer extends AbstractLexer {
     public List<Token> peekToken(int count)
             throws IOException, TokenException {
         List<Token> res;
-        List<Token> q;
-        int size;
 
-        q = queue;
         cache(count);
-        size = q.size();
-        if (size < count) {
-            count = size;
-        }
-        res = q.subList(0, count);
-        res = Collections.unmodifiableList(res);
+        res = queue.peek(count);
         return res;
     }
 
@@ -131,8 +134,8 @@ public final class ScriptLexer extends AbstractLexer {
      */
     public void discardToken(int count) {
         int i;
-        Queue<Token> q;
-        Token token;
+        TokenQueue q;
+        String str;
 
         if (DEBUG && DEBUG_DISCARD) {
             Debug.err.format("[DSCD]\tcount=%d%n", count);
@@ -140,32 +143,17 @@ public final class ScriptLexer extends AbstractLexer {
         i = 0;
         q = queue;
         while (i++ < count) {
-            token = q.remove();
-            cleanLine(token);
             if (DEBUG && DEBUG_DISCARD) {
+                str = q.text(0);
+                q.remove();
                 Debug.err.format("[DSCD]\tstr=\"%s\"%n\tcache=%d %s%n",
-                        token.token, q.size(), q.toString()
+                        str, q.size(), q.toString()
                 );
+            } else {
+                q.remove();
             }
         }
     }
-    
-    private void cleanLine(Token token) {
-        int idx;
-        SortedMap<Integer, Queue<Token>> m;
-        Queue<Token> l;
-        
-        if (token == null)
-            throw new NullPointerException("cleanLine");
-        idx = token.line;
-        // remove token in list
-        m = map;
-        l = m.get(idx);
-        l.remove(token);
-        // remove int-list binding from map
-        if (l.isEmpty())
-            m.remove(idx);
-    }
 
     /**
      * Get next token
@@ -174,84 +162,130 @@ public final class ScriptLexer extends AbstractLexer {
      * @throws java.io.IOException
      */
     public Token nextToken() throws IOException, NoSuchElementException {
-        Queue<Token> q;
-        Token res;
-        int lineNumber;
+        int kind;
+
+        kind = next();
+        return new Token(kind, getText(), curLine);
+    }
+
+    /**
+     * Move to the next token without creating a {@link Token}
+     *
+     * @return kind of the next token
+     * @throws IOException
+     * @throws NoSuchElementException
+     * @see #getText()
+     * @see #getLine()
+     */
+    public int next() throws IOException, NoSuchElementException {
+        TokenQueue q;
 
         if (!hasNextToken()) {
             throw new NoSuchElementException();
         }
         q = queue;
-        res = q.remove();
-        lineNumber = res.line;
-        cleanLine(res);
+        curKind = q.kind(0);
+        curStart = q.start(0);
+        curLength = q.length(0);
+        curLine = q.line(0);
+        curText = q.rawText(0);
+        q.remove();
         if (DEBUG && DEBUG_NEXT) {
             Debug.err.format("[NEXT]\tline=%d, next=\"%s\"%n\tcache=%d %s%n",
-                    lineNumber, res.token, q.size(), q.toString()
+                    curLine, getText(), q.size(), q.toString()
             );
         }
+        return curKind;
+    }
+
+    /**
+     *
+     * @return text of the token returned by {@link #next()}
+     */
+    public String getText() {
+        String res;
+
+        res = curText;
+        if (res == null) {
+            res = TokenQueue.text(curKind, source, curStart, curLength);
+            curText = res;
+        }
         return res;
     }
 
     /**
-     * Create a token string with char data from the buffer
+     *
+     * @return line number of the token returned by {@link #next()}
+     */
+    public int getLine() {
+        return curLine;
+    }
+
+    /**
+     * Peek the text of a buffered token
+     *
+     * @param index
+     * @return null if there are not enough tokens
+     * @throws IOException
+     */
+    public String peekText(int index) throws IOException {
+        TokenQueue q;
+
+        q = queue;
+        cache(index + 1);
+        if (index >= q.size()) {
+            return null;
+        }
+        return q.text(index);
+    }
+
+    /**
+     * Queue a token with char data from the buffer
+     *
+     * Token text is shared for constant kinds, and is only created
+     * on demand when the buffer is the whole decoded input
      *
      * @param src
      * @param dst
-     * @return
+     * @return kind of the token
      */
-    private String cache(int lineNumber, boolean isComment,
+    private int cache(int lineNumber,
             char[] buf, int src, int dst)
             throws AssertionError {
         int len;
-        char c;
+        int kind;
         String str;
         //int i;
-        Queue<Token> q;
+        TokenQueue q;
 
         if (src == dst) {
             throw new AssertionError("Empty string");
         }
         len = dst - src;
-        str = new String(buf, src, len);
-        if (!isComment && len == 1) {
-            c = buf[src];
-            if (c == '{') {
-                //slbl.add(lineNumber);
-                ++cl;
-            } else if (c == '}') {
-                ++cr;
-            }
-            /*
-            for (i = 0; i < len; i++) {
-                c = buf[src + i];
-                if (c == '{') {
-                    slbl.add(lineNumber);
-                    ++cl;
-                    i = -1;
-                    break;
-                } else if (c == '}') {
-                    ++cr;
-                    i = -1;
-                    break;
-                }
-            }
-            if (i == -1 && len != 1)
-                throw new AssertionError(
-                        String.format("[WARN] Unexpected token: \"%s\"%n", str)
-                );
-            */
+        kind = Token.kindOf(buf, src, len);
+        if (kind == Token.LBRACE) {
+            //slbl.add(lineNumber);
+            ++cl;
+        } else if (kind == Token.RBRACE) {
+            ++cr;
+        }
+        if (buf == source || Token.valueOf(kind) != null) {
+            str = null;
+        } else {
+            // the buffer will be refilled
+            str = new String(buf, src, len);
         }
         q = queue;
+        q.add(kind, src, len, lineNumber, str);
         if (DEBUG && DEBUG_CACHE) {
             Debug.err.format("[CACHE]\tline=%d, src=%d, dst=%d, str=\"%s\"%n"
                     + "\tcache=%d %s%n",
-                    lineNumber, src, dst, str,
+                    lineNumber, src, dst, q.text(q.size() - 1),
                     q.size(), q.toString()
             );
         }
 
-        return str;
+        return kind;
     }
 
     private boolean isTerminalCharacter(char c) {
@@ -276,12 +310,11 @@ public final class ScriptLexer extends AbstractLexer {
         }
     }
 
-    private static String compact(CharBuffer buf) {
-        CharBuffer tmp;
+    private static void compact(CharBuffer buf, StringBuilder tmp) {
         char c;
         boolean isString;
 
-        tmp = CharBuffer.allocate(buf.remaining());
+        tmp.setLength(0);
         buf.mark();
         isString = false;
         while (buf.hasRemaining()) {
@@ -292,27 +325,39 @@ public final class ScriptLexer extends AbstractLexer {
             if (Character.isWhitespace(c) && !isString) {
                 continue;
             }
-            tmp.put(c);
+            tmp.append(c);
         }
         buf.reset();
-        tmp.flip();
-        return tmp.toString();
     }
 
-    private boolean tokenize(Queue<Token> q, Map<Integer, Queue<Token>> m)
+    private static boolean contentEquals(CharSequence a, CharSequence b) {
+        int i, len;
+
+        len = a.length();
+        if (len != b.length()) {
+            return false;
+        }
+        for (i = 0; i < len; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tokenize(TokenQueue q)
             throws IOException, TokenException {
         char c;
         int src, dst, pos;
         String res;
-        Token token;
+        char[] hb;
         int lineNumber;
         boolean isComment;
         boolean isString;
         CharBuffer buf;
-        Queue<Token> p;
-        String line;
+        StringBuilder line;
         StringBuilder sb;
-        String lex;
+        int start;
 
         // skip empty line:         "\r?\n"
         // skip white-space line:   "\s+\r?\n"
@@ -331,15 +376,21 @@ public final class ScriptLexer extends AbstractLexer {
         }
 
         lineNumber = getLineNumber();
-        p = new LinkedList<>();
-        line = compact(buf);
-        sb = new StringBuilder();
+        start = buf.position();
+        sb = lexBuilder;
+        sb.setLength(0);
         do {
             isComment = false;
             c = buf.get();
             if (c == '#') {
                 isComment = true;
-                res = handleComment(buf);
+                if (Debug.ACCEPT_COMMENT) {
+                    res = handleComment(buf);
+                    q.add(Token.COMMENT, 0, res.length(), lineNumber, res);
+                } else {
+                    // comment ends with the line
+                    buf.position(buf.limit());
+                }
             } else {
                 // non-comment token
 
@@ -383,20 +434,20 @@ public final class ScriptLexer extends AbstractLexer {
                         }
                     }
                 }
-                res = cache(lineNumber, isComment, buf.array(), src, dst);
-            }
-
-            sb.append(res);
-            if (!isComment || Debug.ACCEPT_COMMENT) {
-                token = new Token(res, lineNumber);
-                if (!q.add(token) || !p.add(token)) {
-                    throw new IllegalStateException("Fail to add new token");
-                }
+                hb = buf.array();
+                cache(lineNumber, hb, src, dst);
+                sb.append(hb, src, dst - src);
             }
         } while (skipLeadingWhitespace(buf));
 
-        lex = sb.toString();
-        if (!lex.equals(line) && !isComment) {
+        if (isComment) {
+            // lines ending with a comment are not checked
+            return true;
+        }
+        buf.position(start);
+        line = lineBuilder;
+        compact(buf, line);
+        if (!contentEquals(sb, line)) {
             throw new AssertionError(
                     String.format(
                             "Lexical analysis exception @ %d:%n"
@@ -404,16 +455,11 @@ public final class ScriptLexer extends AbstractLexer {
                             + "\tToken: %s%n",
                             lineNumber,
                             line,
-                            lex
+                            sb
                     )
             );
         }
 
-        // map the line with all tokens in this line
-        if (!p.isEmpty()) {
-            m.put(lineNumber, p);
-        }
-
         return true;
     }
 
@@ -16,6 +16,7 @@
  */
 package com.stellaris;
 
+import com.stellaris.io.AbstractLexer;
 import com.stellaris.mod.SyntaxException;
 import com.stellaris.script.ScriptBoolean;
 import com.stellaris.script.ScriptColor;
@@ -31,6 +32,7 @@ import com.stellaris.script.ScriptReference;
 import com.stellaris.script.ScriptString;
 import com.stellaris.script.ScriptStruct;
 import com.stellaris.script.ScriptValue;
+import com.stellaris.script.SymbolTable;
 import com.stellaris.test.Debug;
 import static com.stellaris.test.Debug.DEBUG;
 import static com.stellaris.test.Debug.SKIP_LINE;
@@ -43,11 +45,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.EmptyStackException;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.script.*;
@@ -55,14 +57,28 @@ import javax.script.*;
 /**
  * Generates AST (a.k.a abstract syntax tree) for Stellaris Script
  *
+ * Nested structs are tracked on an explicit stack, so nesting depth is
+ * not limited by the call stack, and values are put straight into the
+ * struct being parsed.
+ *
+ * Every struct created by the parser is indexed by the full path of its
+ * field, so {@link #get(Field)} and {@link #put(Field, ScriptValue)} find
+ * the struct of a parent field without walking down from the root. The
+ * index is released along with the parser.
+ *
  * @author donizyo
  */
 public class ScriptParser extends ScriptValue {
 
+    // characters which may follow the leading digits of a number
+    private static final String NUMBER_CHARS = "0123456789.+-eEfFdDxXpPabcABC";
+
     private ScriptLexer scriptParser;
     private boolean isCore;
     private ScriptContext context;
     private String filename;
+    // struct of each struct field created while parsing
+    private final Map<Field, ScriptStruct> structs;
 
     public static ScriptParser newInstance(File file, ScriptContext context) {
         try {
@@ -110,11 +126,13 @@ public class ScriptParser extends ScriptValue {
         this.filename = filename;
         this.isCore = isCoreFile;
         this.context = context;
+        structs = new HashMap<>();
         analyze();
     }
 
     private ScriptParser(File file, ScriptContext context) throws IOException {
-        this(new ScriptLexer(file), ScriptPath.getPath(file), isCoreFile(file), context);
+        this(new ScriptLexer(AbstractLexer.map(file)),
+                ScriptPath.getPath(file), isCoreFile(file), context);
     }
 
     private ScriptParser(Reader reader, String filename,
@@ -128,7 +146,7 @@ public class ScriptParser extends ScriptValue {
 
         parser = scriptParser;
         try {
-            res = analyze(null, 0, 0);
+            res = analyzeIterative();
             if (res != 0) {
                 throw new TokenException(
                         String.format(
@@ -170,9 +188,6 @@ public class ScriptParser extends ScriptValue {
     public void put(Field field, ScriptValue value) {
         Bindings bindings;
         Field parent;
-        String fieldName;
-        Object obj;
-        ScriptValue old;
 
         bindings = getBindings(context);
         if (bindings == null) {
@@ -182,195 +197,179 @@ public class ScriptParser extends ScriptValue {
             throw new UnsupportedOperationException("Accessing ScriptFile as ScriptValue");
         }
         parent = field.getParent();
-        fieldName = field.getName();
         if (parent != null) {
             bindings = (ScriptStruct) get(parent);
         }
         if (value == null) {
             value = new ScriptNull();
         }
+        put(bindings, field.getName(), value);
+        if (value instanceof ScriptStruct) {
+            structs.put(field, (ScriptStruct) value);
+        } else {
+            structs.remove(field);
+        }
+    }
+
+    /**
+     * Put a value into the struct it belongs to, keeping the type
+     * information of the value it replaces
+     *
+     * @param bindings
+     * @param fieldName
+     * @param value not null
+     */
+    private static void put(Bindings bindings, String fieldName, ScriptValue value) {
+        Object obj;
+
         obj = bindings.get(fieldName);
         if (obj != null && obj instanceof ScriptValue) {
-            old = (ScriptValue) obj;
-            value.updateTypeInfo(old);
+            value.updateTypeInfo((ScriptValue) obj);
         }
         bindings.put(fieldName, value);
     }
 
     public ScriptValue get(Field field) {
-        Stack<String> stack;
+        if (field == null) {
+            throw new NullPointerException();
+        }
+        return get(field, true);
+    }
+
+    private ScriptValue get(Field field, boolean isLeaf) {
         Field parent;
         String name;
         Bindings bindings;
         Object obj;
         ScriptValue value;
 
-        if (field == null) {
-            throw new NullPointerException();
-        }
-        stack = new Stack<>();
-        parent = field;
-        while (parent != null) {
-            name = parent.getName();
-            parent = parent.getParent();
-            stack.push(name);
+        value = structs.get(field);
+        if (value != null) {
+            return value;
         }
+        parent = field.getParent();
+        name = field.getName();
         // root node
-        try {
-            name = stack.pop();
-        } catch (EmptyStackException ex) {
-            throw new AssertionError(ex);
+        if (parent == null) {
+            bindings = getBindings(context);
+            if (bindings == null) {
+                throw new NullPointerException();
+            }
+            obj = bindings.get(name);
+            if (obj == null) {
+                throw new NullPointerException();
+            }
+            if (!(obj instanceof ScriptValue)) {
+                throw new AssertionError(obj.getClass());
+            }
+            return (ScriptValue) obj;
         }
-        bindings = getBindings(context);
-        if (bindings == null) {
-            throw new NullPointerException();
+        value = get(parent, false);
+        if (!(value instanceof ScriptStruct)) {
+            throw new AssertionError(value.getClass().toString());
         }
-        obj = bindings.get(name);
+        obj = ((ScriptStruct) value).get(name);
         if (obj == null) {
-            throw new NullPointerException();
-        }
-        if (!(obj instanceof ScriptValue)) {
-            throw new AssertionError(obj.getClass());
-        }
-        value = (ScriptValue) obj;
-        // leaf node
-        while (!stack.isEmpty()) {
-            name = stack.pop();
-            try {
-                bindings = (ScriptStruct) value;
-
-                obj = bindings.get(name);
-                if (obj == null) {
-                    if (stack.isEmpty()) {
-                        return null;
-                    } else {
-                        throw new NullPointerException();
-                    }
-                }
-                value = (ScriptValue) obj;
-            } catch (NullPointerException ex) {
-                throw new AssertionError(ex);
-            } catch (ClassCastException ex) {
-                throw new AssertionError(value.getClass().toString(), ex);
+            if (isLeaf) {
+                return null;
             }
+            throw new AssertionError(new NullPointerException());
         }
-
-        return value;
+        return (ScriptValue) obj;
     }
 
-    // remember to skip the current line when TokenException is thrown
-    private int analyze(Field parent, int state, int index)
+    /**
+     * Parse the whole script, with the open structs kept on a stack
+     * instead of the call stack; values are put directly into the
+     * innermost open struct
+     *
+     * @return 0 if all structs have been closed, -1 on an unmatched
+     * closing brace
+     */
+    private int analyzeIterative()
             throws IOException, TokenException, NoSuchElementException {
         ScriptLexer parser;
-        Token token;
+        // field, struct and field count of each open struct, root at 0
+        Field[] parents;
+        Bindings[] scopes;
+        int[] indices;
+        Field parent, field;
+        ScriptStruct struct;
+        int kind, index, depth;
         String sToken, key;
         List<Token> tokens;
         List<String> output;
-        Iterator<String> itr;
-        Field field;
-        //Type type;
         boolean isRange;
         boolean isList;
         Patterns patterns;
-        int newstate;
-        int min, max;
         ScriptList<ScriptValue> scriptList;
-        ScriptColor scriptColor;
 
-        if (DEBUG) {
-            Debug.err.format("[PARSE]\tparent=%s, state=%d, index=%d%n",
-                    parent, state, index
-            );
+        parser = scriptParser;
+        parents = new Field[16];
+        scopes = new Bindings[16];
+        indices = new int[16];
+        scopes[0] = getBindings(context);
+        if (scopes[0] == null) {
+            throw new NullPointerException();
         }
+        depth = 0;
+        parent = null;
         index = 0;
-        parser = scriptParser;
         while (parser.hasNextToken()) {
             try {
-                token = parser.nextToken();
-                sToken = token.token;
-            } catch (TokenException ex) {
-                if (SKIP_LINE) {
-                    skipCurrentLine(parser, ex);
+                kind = parser.next();
+                // ignore comment token
+                if (kind == Token.COMMENT) {
                     continue;
                 }
-                throw ex;
-            }
-            // ignore comment token
-            if (sToken.charAt(0) == '#') {
-                continue;
-            }
-            // return
-            if ("}".equals(sToken)) {
-                //put(parent, cache); cache = null;
-                return --state;
-            }
-            try {
-                if (handleColorList(parent, token)) {
-                    //type = Type.COLORLIST;
-                    return --state;
-                } else {
-                    key = sToken;
-                }
-            } catch (TokenException | NumberFormatException ex) {
-                if (SKIP_LINE) {
-                    skipCurrentLine(parser, ex);
+                sToken = parser.getText();
+                // leave struct
+                if ("}".equals(sToken)) {
+                    if (depth == 0) {
+                        return -1;
+                    }
+                    parent = parents[--depth];
+                    index = indices[depth];
                     continue;
                 }
-                throw ex;
-            }
-
-            // operator
-            // or list?
-            try {
-                token = parser.nextToken();
-                sToken = token.token;
-            } catch (TokenException ex) {
-                if (SKIP_LINE) {
-                    skipCurrentLine(parser, ex);
+                if (handleColorList(parent, sToken)) {
+                    if (depth == 0) {
+                        return -1;
+                    }
+                    parent = parents[--depth];
+                    index = indices[depth];
                     continue;
                 }
-                throw ex;
-            }
-            isList = !"=".equals(sToken)
-                    && !">".equals(sToken)
-                    && !"<".equals(sToken);
-            // update for Stellaris v1.2
-            if (checkColorToken(sToken) != null) {
-                try {
+                key = sToken;
+
+                // operator
+                // or list?
+                parser.next();
+                sToken = parser.getText();
+                isList = !"=".equals(sToken)
+                        && !">".equals(sToken)
+                        && !"<".equals(sToken);
+                // update for Stellaris v1.2
+                if (checkColorToken(sToken) != null) {
                     throw new TokenException("Unexpected color token");
-                } catch (TokenException ex) {
-                    if (SKIP_LINE) {
-                        skipCurrentLine(parser, ex);
-                        continue;
-                    }
-                    throw ex;
                 }
-            }
 
-            if (isList) {
-                // list entries: key, token, ...
-                scriptList = new ScriptList<>(
-                        ScriptValue.parseString(key)
-                );
-                try {
-                    isList = handlePlainList(scriptList, token);
-                } catch (TokenException ex) {
-                    if (SKIP_LINE) {
-                        skipCurrentLine(parser, ex);
-                        continue;
-                    }
-                    throw ex;
-                }
                 if (isList) {
-                    //type = Type.LIST;
-                    //put(parent, type);
+                    // list entries: key, token, ...
+                    scriptList = new ScriptList<>(
+                            ScriptValue.parseString(key)
+                    );
+                    handlePlainList(scriptList, sToken);
                     put(parent, scriptList);
-                    scriptList = null;
-                    return --state;
-                } else {
-                    throw new AssertionError();
+                    if (depth == 0) {
+                        return -1;
+                    }
+                    parent = parents[--depth];
+                    index = indices[depth];
+                    continue;
                 }
-            } else {
+                // canonical instance from the symbol table
+                key = SymbolTable.intern(key);
                 field = new Field(parent, key);
                 if (Debug.DEBUG_FIELD) {
                     Debug.err.format("[FIELD]\tparent=%s, key=%s, index=%d%n",
@@ -378,95 +377,165 @@ public class ScriptParser extends ScriptValue {
                 }
                 ++index;
                 // value
-                try {
-                    token = parser.nextToken();
-                    sToken = token.token;
-                } catch (TokenException ex) {
-                    if (SKIP_LINE) {
-                        skipCurrentLine(parser, ex);
-                        continue;
-                    }
-                    throw ex;
-                }
+                parser.next();
+                sToken = parser.getText();
                 patterns = checkColorToken(sToken);
                 if (patterns != null) {
-                    try {
-                        scriptColor = handleColorToken(patterns);
-                    } catch (TokenException | NumberFormatException ex) {
-                        if (SKIP_LINE) {
-                            skipCurrentLine(parser, ex);
-                            continue;
-                        }
-                        throw ex;
-                    }
-                    put(field, scriptColor);
-                    scriptColor = null;
+                    put(scopes[depth], key, handleColorToken(patterns));
+                    structs.remove(field);
                 } else if ("{".equals(sToken)) {
-                    try {
+                    output = null;
+                    // only look further ahead when a range may follow
+                    isRange = "min".equals(parser.peekText(0));
+                    if (isRange) {
                         tokens = parser.peekToken(7);
-                    } catch (TokenException ex) {
-                        if (SKIP_LINE) {
-                            skipCurrentLine(parser, ex);
-                            continue;
-                        }
-                        throw ex;
+                        output = new ArrayList<>(2);
+                        // { -> min = INTEGER max = INTEGER }
+                        isRange = Patterns.PS_RANGE.matches(tokens, output);
                     }
-                    output = new ArrayList<>(2);
-                    // { -> min = INTEGER max = INTEGER }
-                    patterns = Patterns.PS_RANGE;
-                    isRange = patterns.matches(tokens, output);
                     if (isRange) {
-                        itr = output.iterator();
-
-                        sToken = itr.next();
-                        min = Integer.parseInt(sToken);
-                        sToken = itr.next();
-                        max = Integer.parseInt(sToken);
-
-                        put(field, new ScriptRange(min, max));
+                        put(scopes[depth], key, new ScriptRange(
+                                Integer.parseInt(output.get(0)),
+                                Integer.parseInt(output.get(1))));
+                        structs.remove(field);
                         parser.discardToken(7);
                     } else {
-                        // add 1 each time a struct is found
-                        put(field, new ScriptStruct());
-                        newstate = analyze(field, state + 1, index - 1);
-                        if (newstate != state) {
-                            throw new TokenException(
-                                    String.format(
-                                            "Invalid parsing state: %d\t(expecting: %d)",
-                                            newstate, state
-                                    )
+                        // enter struct
+                        struct = new ScriptStruct();
+                        put(scopes[depth], key, struct);
+                        structs.put(field, struct);
+                        if (DEBUG) {
+                            Debug.err.format("[PARSE]\tparent=%s, state=%d, index=%d%n",
+                                    field, depth + 1, index - 1
                             );
                         }
-                        state = newstate;
-                    }
-                } else if ("yes".equals(sToken)) {
-                    put(field, new ScriptBoolean(true));
-                } else if ("no".equals(sToken)) {
-                    //type = Type.BOOLEAN;
-                    put(field, new ScriptBoolean(false));
-                } else {
-                    try {
-                        // integer
-                        put(field, new ScriptInteger(Integer.parseInt(sToken)));
-                        //type = Type.INTEGER;
-                    } catch (NumberFormatException e1) {
-                        // float
-                        try {
-                            put(field, new ScriptFloat(Float.parseFloat(sToken)));
-                        } catch (NumberFormatException e2) {
-                            if (sToken.startsWith("\"")
-                                    && sToken.endsWith("\"")) {
-                                put(field, new ScriptString(sToken));
-                            } else {
-                                put(field, new ScriptReference(sToken));
-                            }
+                        indices[depth] = index;
+                        if (++depth == scopes.length) {
+                            parents = Arrays.copyOf(parents, depth << 1);
+                            scopes = Arrays.copyOf(scopes, depth << 1);
+                            indices = Arrays.copyOf(indices, depth << 1);
                         }
+                        parents[depth] = field;
+                        scopes[depth] = struct;
+                        parent = field;
+                        index = 0;
                     }
+                } else {
+                    put(scopes[depth], key, parseScalar(sToken));
+                    structs.remove(field);
                 }
+            } catch (TokenException | NumberFormatException ex) {
+                if (SKIP_LINE) {
+                    skipCurrentLine(parser, ex);
+                    continue;
+                }
+                throw ex;
             }
         }
 
-        return state;
+        if (depth != 0) {
+            // reported for the innermost struct left open
+            throw new TokenException(
+                    String.format(
+                            "Invalid parsing state: %d\t(expecting: %d)",
+                            depth, depth - 1
+                    )
+            );
+        }
+        return depth;
+    }
+
+    /**
+     * Classify a scalar value with a single scan over its characters.
+     *
+     * Decimal integers and plain decimal floats are recognized directly;
+     * only unusual literals the scan cannot decide, like hexadecimal
+     * floats or overflowing integers, go through the number parsers.
+     *
+     * @param sToken
+     * @return boolean, integer, float, string or reference value
+     */
+    static ScriptValue parseScalar(String sToken) {
+        int len, i, start, digits;
+        char c;
+        boolean isFloat;
+        int value;
+
+        if ("yes".equals(sToken)) {
+            return new ScriptBoolean(true);
+        }
+        if ("no".equals(sToken)) {
+            return new ScriptBoolean(false);
+        }
+        len = sToken.length();
+        if (len == 0) {
+            return new ScriptReference(sToken);
+        }
+        c = sToken.charAt(0);
+        if (c == '"') {
+            if (sToken.endsWith("\"")) {
+                return new ScriptString(sToken);
+            }
+            return new ScriptReference(sToken);
+        }
+        start = c == '-' || c == '+' ? 1 : 0;
+        if (start < len) {
+            c = sToken.charAt(start);
+        }
+        if (c == 'N' ? !sToken.startsWith("NaN", start)
+                : c == 'I' ? !sToken.startsWith("Infinity", start)
+                        : c < 0x80 && c > ' ' && !(c >= '0' && c <= '9')
+                        && c != '.') {
+            // cannot start a number
+            return new ScriptReference(sToken);
+        }
+        // [+-]?[0-9]*(\.[0-9]*)?
+        digits = 0;
+        isFloat = false;
+        value = 0;
+        for (i = start; i < len; i++) {
+            c = sToken.charAt(i);
+            if (c >= '0' && c <= '9') {
+                ++digits;
+                value = value * 10 + (c - '0');
+            } else if (c == '.' && !isFloat) {
+                isFloat = true;
+            } else {
+                break;
+            }
+        }
+        if (i == len && digits > 0) {
+            if (!isFloat && digits < 10) {
+                return new ScriptInteger(sToken.charAt(0) == '-' ? -value : value);
+            }
+            if (isFloat) {
+                return new ScriptFloat(Float.parseFloat(sToken));
+            }
+        } else if (i > start && i < len && c < 0x80 && c > ' '
+                && NUMBER_CHARS.indexOf(c) == -1) {
+            // like 1st_fleet, no number contains this character
+            return new ScriptReference(sToken);
+        }
+        return parseNumber(sToken);
+    }
+
+    private static ScriptValue parseNumber(String sToken) {
+        try {
+            // integer
+            return new ScriptInteger(Integer.parseInt(sToken));
+        } catch (NumberFormatException e1) {
+            // float
+            try {
+                return new ScriptFloat(Float.parseFloat(sToken));
+            } catch (NumberFormatException e2) {
+                if (sToken.startsWith("\"")
+                        && sToken.endsWith("\"")) {
+                    return new ScriptString(sToken);
+                } else {
+                    return new ScriptReference(sToken);
+                }
+            }
+        }
     }
 
     private void skipCurrentLine(ScriptLexer parser, Throwable ex) {
@@ -492,14 +561,12 @@ public class ScriptParser extends ScriptValue {
         return bindings;
     }
 
-    private boolean handleColorList(Field parent, Token token) throws IOException {
+    private boolean handleColorList(Field parent, String sToken) throws IOException {
         Patterns patterns;
         ScriptColor color;
         ScriptList<ScriptColor> colorList;
         ScriptLexer parser;
-        String sToken;
 
-        sToken = token.token;
         // detect color list
         patterns = checkColorToken(sToken);
         if (patterns == null) {
@@ -513,8 +580,8 @@ public class ScriptParser extends ScriptValue {
             color = handleColorToken(patterns);
             colorList.add(color);
 
-            token = parser.nextToken();
-            sToken = token.token;
+            parser.next();
+            sToken = parser.getText();
             patterns = checkColorToken(sToken);
             if (patterns != null) {
                 continue;
@@ -611,11 +678,9 @@ public class ScriptParser extends ScriptValue {
         return patterns;
     }
 
-    private boolean handlePlainList(ScriptList list, Token token) throws IOException {
+    private boolean handlePlainList(ScriptList list, String sToken) throws IOException {
         ScriptLexer parser;
-        String sToken;
 
-        sToken = token.token;
         // handle single-element list
         if ("}".equals(sToken)) {
             return true;
@@ -625,8 +690,8 @@ public class ScriptParser extends ScriptValue {
         list.add(ScriptValue.parseString(sToken));
         // handle multiple-element list
         while (true) {
-            token = parser.nextToken();
-            sToken = token.token;
+            parser.next();
+            sToken = parser.getText();
             if ("}".equals(sToken)) {
                 return true;
             }
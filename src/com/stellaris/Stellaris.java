@@ -17,6 +17,8 @@
 package com.stellaris;
 
 import com.stellaris.mod.ModLoader;
+import com.stellaris.script.AstStore;
+import com.stellaris.script.ScriptValue;
 import com.stellaris.script.SimpleEngine;
 import com.stellaris.script.SimpleFactory;
 import com.stellaris.test.Debug;
@@ -26,11 +28,15 @@ import java.io.*;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.script.*;
@@ -55,13 +61,30 @@ public class Stellaris extends SimpleFactory {
 
     private static Stellaris stellaris;
     private final DigestStore digestStore;
+    private final AstStore astStore;
     private final ScriptEngine scriptEngine;
     private File dirRoot;
     private Set<String> directories;
+    private int parallelism;
+    private int reparsed;
+    private int restored;
 
     public Stellaris() {
-        digestStore = new DigestStore();
+        this(new DigestStore(), new AstStore());
+    }
+
+    /**
+     * Keep file digests and parsed bindings in the given stores instead
+     * of the ones in the working directory
+     *
+     * @param digestStore
+     * @param astStore
+     */
+    public Stellaris(DigestStore digestStore, AstStore astStore) {
+        this.digestStore = digestStore;
+        this.astStore = astStore;
         scriptEngine = super.getScriptEngine();
+        parallelism = 1;
     }
 
     public File getRootDirectory() {
@@ -83,20 +106,101 @@ public class Stellaris extends SimpleFactory {
         }
     }
 
+    /**
+     * Set the number of worker threads used by {@link #scan(boolean)}
+     *
+     * @param parallelism 1 for a sequential scan on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(Integer.toString(parallelism));
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Parse all script files under the root directory.
+     *
+     * An incremental scan restores the bindings of unchanged files from
+     * the AST store instead of parsing them again, and remembers the
+     * bindings of the files it has parsed.
+     *
+     * @param forceUpdate true to parse every file and leave the stores
+     * untouched
+     */
     public void scan(boolean forceUpdate) {
+        List<File> list;
+        Bindings[] results;
+
+        digestStore.resetCounters();
+        list = listFiles();
+        restored = 0;
+        if (forceUpdate) {
+            reparsed = list.size();
+            if (parallelism > 1 && list.size() > 1) {
+                results = new Bindings[list.size()];
+                parse(list, results, false);
+                merge(results);
+            } else {
+                for (File file : list) {
+                    parse(file, scriptEngine.getContext());
+                }
+            }
+            return;
+        }
+        results = restore(list);
+        reparsed = list.size() - restored;
+        parse(list, results, true);
+        merge(results);
+    }
+
+    private Bindings[] restore(List<File> list) {
+        Bindings[] results;
+        Set<String> paths;
+        boolean[] matches;
+        File file;
+        String path;
+        int i;
+
+        results = new Bindings[list.size()];
+        paths = new HashSet<>();
+        // stale files are hashed on the scan threads
+        matches = digestStore.matches(list, parallelism);
+        for (i = 0; i < results.length; i++) {
+            file = list.get(i);
+            path = ScriptPath.getPath(file);
+            paths.add(path);
+            if (matches[i]) {
+                results[i] = astStore.get(path, digestStore.getDigest(file));
+                if (results[i] != null) {
+                    ++restored;
+                }
+            }
+        }
+        // forget deleted files
+        astStore.retain(paths);
+        return results;
+    }
+
+    private List<File> listFiles() {
         DirectoryFilter df;
         ScriptFilter sf;
         Queue<File> files, dirs;
         File file, dir;
-        ScriptParser script;
         String filename;
         Set<String> set;
+        List<File> list;
 
         df = new DirectoryFilter();
         dirRoot.listFiles(df);
         sf = new ScriptFilter(df.getDirs());
         dirs = sf.getDirs();
         set = new HashSet<>();
+        list = new ArrayList<>();
 
         while (!dirs.isEmpty()) {
             dir = dirs.remove();
@@ -123,38 +227,152 @@ public class Stellaris extends SimpleFactory {
                         continue mainloop;
                     }
                 }
-                if (!forceUpdate && digestStore.matches(file)) {
-                    continue;
-                }
-                // refresh syntax table
-                if (Debug.DEBUG && Debug.DEBUG_REFRESH) {
-                    Debug.out.format("[REFRESH] %s%n", ScriptPath.getPath(file));
-                }
-                try {
-                    script = ScriptParser.newInstance(file, scriptEngine.getContext());
-                } catch (IllegalStateException | AssertionError | BufferUnderflowException | BufferOverflowException ex) {
-                    Debug.err.format("[ERROR] Found at file \"%s\"%n", filename);
-                } catch (TokenException ex) {
-                    Debug.err.format("[ERROR] Found at file \"%s\"%n\t%s%n",
-                            filename, ex);
-                } catch (NoSuchElementException ex) {
-                    throw new RuntimeException(
-                            String.format(
-                                    "A non-blacklisted file \"%s\" has serious error!",
-                                    filename),
-                            ex
-                    );
-                }
+                list.add(file);
             } while (!files.isEmpty());
         }
 
         directories = new TreeSet<>(set);
+        return list;
+    }
+
+    /**
+     * Parse files whose bindings are still missing
+     *
+     * @param list
+     * @param results
+     * @param cache whether to remember parsed bindings in the AST store
+     */
+    private void parse(List<File> list, Bindings[] results, boolean cache) {
+        ForkJoinPool pool;
+        int i;
+
+        if (parallelism > 1 && list.size() - restored > 1) {
+            pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new ScanTask(this, list, results, cache));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = parse(list.get(i), cache);
+                }
+            }
+        }
+    }
+
+    private void merge(Bindings[] results) {
+        Bindings global;
+        Object obj;
+
+        // merge in file order,
+        // so that the result is identical to a sequential scan
+        global = scriptEngine.getContext().getBindings(ScriptContext.GLOBAL_SCOPE);
+        for (Bindings bindings : results) {
+            for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+                obj = global.get(entry.getKey());
+                if (obj instanceof ScriptValue) {
+                    ((ScriptValue) entry.getValue()).updateTypeInfo((ScriptValue) obj);
+                }
+                global.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Parse a file into isolated bindings
+     *
+     * @param file
+     * @param cache whether to remember the bindings in the AST store
+     * @return
+     */
+    Bindings parse(File file, boolean cache) {
+        ScriptContext context;
+        Bindings bindings;
+
+        context = new SimpleScriptContext();
+        bindings = new SimpleBindings();
+        context.setBindings(bindings, ScriptContext.GLOBAL_SCOPE);
+        parse(file, context);
+        if (cache) {
+            // keep partial bindings of a broken file,
+            // so that restoring it gives the same result
+            astStore.put(ScriptPath.getPath(file),
+                    digestStore.getDigest(file), bindings);
+        }
+        return bindings;
+    }
+
+    void parse(File file, ScriptContext context) {
+        String filename;
+
+        filename = ScriptPath.getPath(file);
+        // refresh syntax table
+        if (Debug.DEBUG && Debug.DEBUG_REFRESH) {
+            Debug.out.format("[REFRESH] %s%n", filename);
+        }
+        try {
+            ScriptParser.newInstance(file, context);
+        } catch (IllegalStateException | AssertionError | BufferUnderflowException | BufferOverflowException ex) {
+            Debug.err.format("[ERROR] Found at file \"%s\"%n", filename);
+        } catch (TokenException ex) {
+            Debug.err.format("[ERROR] Found at file \"%s\"%n\t%s%n",
+                    filename, ex);
+        } catch (NoSuchElementException ex) {
+            throw new RuntimeException(
+                    String.format(
+                            "A non-blacklisted file \"%s\" has serious error!",
+                            filename),
+                    ex
+            );
+        }
     }
 
     public Set<String> getDirectories() {
         return directories;
     }
 
+    /**
+     *
+     * @return number of files the last scan skipped as unchanged
+     */
+    public int getSkippedCount() {
+        return digestStore.getSkippedCount();
+    }
+
+    /**
+     *
+     * @return number of files the last scan had to hash
+     */
+    public int getRehashedCount() {
+        return digestStore.getRehashedCount();
+    }
+
+    /**
+     *
+     * @return number of files the last scan parsed
+     */
+    public int getReparsedCount() {
+        return reparsed;
+    }
+
+    /**
+     *
+     * @return number of files the last scan restored from the AST store
+     */
+    public int getRestoredCount() {
+        return restored;
+    }
+
+    /**
+     * Save digests and parsed bindings for the next incremental scan
+     */
+    public void store() {
+        digestStore.store();
+        astStore.store();
+    }
+
     private static void printCopyrightMessage() {
         Debug.out.format("\tStellarisIDE is an open-source software licensed under GPLv3.%n"
                 + "\tIt is aimed to help people create non-commercial mods%n"
@@ -198,12 +416,18 @@ public class Stellaris extends SimpleFactory {
             st = new Stellaris();
             Stellaris.setDefault(st);
             st.init(path);
+            st.setParallelism(Runtime.getRuntime().availableProcessors());
             scanner = new VersionScanner(path);
             Debug.out.format("Game Version: v%s%n"
                     + "Checkout directory \"%s\"...%n",
                     scanner.getGameVersion(),
                     path);
-            st.scan(true);
+            st.scan(false);
+            Debug.out.format("[SCAN]\tskipped=%d, rehashed=%d, reparsed=%d, restored=%d%n",
+                    st.getSkippedCount(),
+                    st.getRehashedCount(),
+                    st.getReparsedCount(),
+                    st.getRestoredCount());
             se = st.scriptEngine;
             sc = se.getContext();
             ftb = new FieldTypeBinding(sc);
@@ -225,8 +449,8 @@ public class Stellaris extends SimpleFactory {
             Logger.getLogger(Stellaris.class.getName()).log(Level.SEVERE, null, ex);
         } finally {
             if (st != null) {
-                st.digestStore.store();
+                st.store();
             }
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
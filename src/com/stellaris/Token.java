@@ -22,13 +22,104 @@ package com.stellaris;
  */
 public final class Token {
 
+    // token kinds
+    public static final int WORD = 0;
+    public static final int STRING = 1;
+    public static final int COMMENT = 2;
+    public static final int LBRACE = 3;
+    public static final int RBRACE = 4;
+    public static final int EQ = 5;
+    public static final int GT = 6;
+    public static final int LT = 7;
+    public static final int YES = 8;
+    public static final int NO = 9;
+    public static final int RGB = 10;
+    public static final int HSV = 11;
+
+    // shared text of constant kinds
+    private static final String[] CONSTANTS = {
+        null, null, null,
+        "{", "}", "=", ">", "<",
+        "yes", "no", "rgb", "hsv"
+    };
+
     public final String token;
     public final int line;
+    public final int kind;
 
-    Token(String str, int num) {
+    Token(int kind, String str, int num) {
+        this.kind = kind;
         token = str;
         line = num;
     }
+
+    /**
+     * Classify a non-comment token without creating its string
+     *
+     * @param buf
+     * @param src
+     * @param len
+     * @return
+     */
+    static int kindOf(char[] buf, int src, int len) {
+        char c;
+
+        c = buf[src];
+        switch (len) {
+            case 1:
+                switch (c) {
+                    case '{':
+                        return LBRACE;
+                    case '}':
+                        return RBRACE;
+                    case '=':
+                        return EQ;
+                    case '>':
+                        return GT;
+                    case '<':
+                        return LT;
+                }
+                break;
+            case 2:
+                if (c == 'n' && buf[src + 1] == 'o') {
+                    return NO;
+                }
+                break;
+            case 3:
+                if (matches(buf, src, "yes")) {
+                    return YES;
+                }
+                if (matches(buf, src, "rgb")) {
+                    return RGB;
+                }
+                if (matches(buf, src, "hsv")) {
+                    return HSV;
+                }
+                break;
+        }
+        return c == '"' ? STRING : WORD;
+    }
+
+    private static boolean matches(char[] buf, int src, String str) {
+        int i, len;
+
+        len = str.length();
+        for (i = 0; i < len; i++) {
+            if (buf[src + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param kind
+     * @return shared text of a constant kind, or null
+     */
+    static String valueOf(int kind) {
+        return CONSTANTS[kind];
+    }
     
     public String toString() {
         return token;
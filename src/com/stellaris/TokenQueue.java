@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Growable circular array of tokens buffered by the lexer.
+ *
+ * Each token is a (kind, start, length, line) record in a primitive
+ * array, referencing the source char buffer; its text is only created
+ * when it is asked for, unless the lexer supplies it up front.
+ *
+ * Tokens are appended line by line, so the tokens of one line always
+ * form a contiguous range starting at the head of the queue; skipping
+ * the current line is a matter of advancing the head past that range.
+ *
+ * @author donizyo
+ */
+final class TokenQueue {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    // kind, start, length, line
+    private static final int STRIDE = 4;
+
+    private int[] records;
+    private String[] texts;
+    private char[] source;
+    // index of the first token
+    private int head;
+    private int size;
+
+    TokenQueue() {
+        records = new int[DEFAULT_CAPACITY * STRIDE];
+        texts = new String[DEFAULT_CAPACITY];
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Set the char buffer token offsets refer to. The buffer must not be
+     * refilled while its tokens are queued.
+     *
+     * @param buf
+     */
+    void setSource(char[] buf) {
+        source = buf;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     *
+     * @param kind
+     * @param start
+     * @param length
+     * @param line
+     * @param text token text, or null to create it on demand
+     */
+    void add(int kind, int start, int length, int line, String text) {
+        int slot, idx;
+        int[] r;
+
+        if (size == texts.length) {
+            grow();
+        }
+        slot = (head + size) & (texts.length - 1);
+        idx = slot * STRIDE;
+        r = records;
+        r[idx] = kind;
+        r[idx + 1] = start;
+        r[idx + 2] = length;
+        r[idx + 3] = line;
+        texts[slot] = text;
+        ++size;
+    }
+
+    private void grow() {
+        int[] r;
+        String[] t;
+        int len, n;
+
+        len = texts.length;
+        r = new int[len * STRIDE * 2];
+        t = new String[len * 2];
+        // unwrap the ring
+        n = len - head;
+        System.arraycopy(records, head * STRIDE, r, 0, n * STRIDE);
+        System.arraycopy(records, 0, r, n * STRIDE, head * STRIDE);
+        System.arraycopy(texts, head, t, 0, n);
+        System.arraycopy(texts, 0, t, n, head);
+        records = r;
+        texts = t;
+        head = 0;
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return (head + index) & (texts.length - 1);
+    }
+
+    int kind(int index) {
+        return records[slot(index) * STRIDE];
+    }
+
+    int start(int index) {
+        return records[slot(index) * STRIDE + 1];
+    }
+
+    int length(int index) {
+        return records[slot(index) * STRIDE + 2];
+    }
+
+    int line(int index) {
+        return records[slot(index) * STRIDE + 3];
+    }
+
+    /**
+     *
+     * @param index
+     * @return text supplied by the lexer or created before, may be null
+     */
+    String rawText(int index) {
+        return texts[slot(index)];
+    }
+
+    /**
+     * Materialize the text of a token
+     *
+     * @param index
+     * @return
+     */
+    String text(int index) {
+        int slot, idx;
+        String res;
+
+        slot = slot(index);
+        res = texts[slot];
+        if (res == null) {
+            idx = slot * STRIDE;
+            res = text(records[idx], source, records[idx + 1], records[idx + 2]);
+            texts[slot] = res;
+        }
+        return res;
+    }
+
+    static String text(int kind, char[] buf, int start, int length) {
+        String res;
+
+        res = Token.valueOf(kind);
+        if (res == null) {
+            res = new String(buf, start, length);
+        }
+        return res;
+    }
+
+    Token get(int index) {
+        return new Token(kind(index), text(index), line(index));
+    }
+
+    void remove() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        texts[head] = null;
+        head = (head + 1) & (texts.length - 1);
+        --size;
+    }
+
+    /**
+     * Remove all tokens of the line the first token belongs to
+     *
+     * @return line number of removed tokens
+     */
+    int removeLine() {
+        int line;
+
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        line = line(0);
+        do {
+            remove();
+        } while (size != 0 && line(0) == line);
+        return line;
+    }
+
+    /**
+     * Create a read-only view of the first few tokens
+     *
+     * @param count
+     * @return
+     */
+    List<Token> peek(int count) {
+        final int n;
+
+        n = count < size ? count : size;
+        return new AbstractList<Token>() {
+            @Override
+            public Token get(int index) {
+                if (index >= n) {
+                    throw new IndexOutOfBoundsException(Integer.toString(index));
+                }
+                return TokenQueue.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb;
+        int i;
+
+        sb = new StringBuilder();
+        sb.append('[');
+        for (i = 0; i < size; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(text(i));
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+}
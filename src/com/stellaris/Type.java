@@ -34,6 +34,25 @@ public enum Type {
     CONDITION
     ;
 
+    private static final Type[] VALUES = values();
+
+    /**
+     *
+     * @return bit of this type in a type mask
+     */
+    public int mask() {
+        return 1 << ordinal();
+    }
+
+    /**
+     *
+     * @param ordinal
+     * @return type of an ordinal
+     */
+    public static Type valueOf(int ordinal) {
+        return VALUES[ordinal];
+    }
+
     public String toString() {
         return "$" + name().toLowerCase();
     }
@@ -20,6 +20,11 @@ import java.nio.*;
 import java.util.zip.Checksum;
 
 /**
+ * 16-bit BSD checksum.
+ *
+ * Each step rotates the sum right by one bit and adds the next byte.
+ * The bulk update methods keep the sum in a local and process heap
+ * arrays and direct buffers in tight loops.
  *
  * @author donizyo
  */
@@ -47,11 +52,68 @@ public class BSD implements Checksum {
     public void update(byte[] b, int off, int len) {
         int i;
         int dst;
+        int v;
 
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
         dst = off + len;
+        v = value;
         for (i = off; i < dst; i++) {
-            update(b[i]);
+            v = step(v, b[i]);
+        }
+        value = v;
+    }
+
+    /**
+     * Update the checksum with the remaining bytes of a buffer, which is
+     * consumed
+     *
+     * @param buf heap, direct or mapped buffer
+     */
+    public void update(ByteBuffer buf) {
+        ByteBuffer src;
+        int i, pos, dst;
+        int v;
+        long x;
+
+        pos = buf.position();
+        dst = buf.limit();
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + pos, dst - pos);
+            buf.position(dst);
+            return;
         }
+        v = value;
+        // eight bytes per read, most significant byte first
+        src = buf;
+        if (src.order() != ByteOrder.BIG_ENDIAN) {
+            src = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        for (i = pos; i <= dst - 8; i += 8) {
+            x = src.getLong(i);
+            v = step(v, (byte) (x >>> 56));
+            v = step(v, (byte) (x >>> 48));
+            v = step(v, (byte) (x >>> 40));
+            v = step(v, (byte) (x >>> 32));
+            v = step(v, (byte) (x >>> 24));
+            v = step(v, (byte) (x >>> 16));
+            v = step(v, (byte) (x >>> 8));
+            v = step(v, (byte) x);
+        }
+        for (; i < dst; i++) {
+            v = step(v, src.get(i));
+        }
+        value = v;
+        buf.position(dst);
+    }
+
+    /**
+     * Same as {@link #update(int)}: rotate the 16-bit sum right by one
+     * and add the byte
+     */
+    private static int step(int v, byte b) {
+        return (((v >>> 1) | (v << 15)) + b) & 0xffff;
     }
 
     @Override
@@ -20,40 +20,80 @@ import java.io.*;
 import java.util.*;
 
 /**
+ * Collects the game binaries which are part of the checksum.
+ *
+ * A pattern starting with a dot matches file names by suffix, any
+ * other pattern matches a file name exactly.
  *
  * @author donizyo
  */
 public class BinaryFileFilter implements FileFilter {
 
-    private final Queue<File> files;
+    public static final Set<String> WINDOWS;
+    public static final Set<String> LINUX;
 
     static {
-        String osName;
-
-        osName = System.getProperty("os.name");
-        if (!osName.startsWith("Win")) {
-            throw new UnsupportedOperationException(osName);
-        }
+        WINDOWS = Collections.unmodifiableSet(
+                new HashSet<>(Arrays.asList(".exe", ".dll")));
+        LINUX = Collections.unmodifiableSet(
+                new HashSet<>(Arrays.asList("stellaris", ".so")));
     }
 
+    private final Set<String> patterns;
+    private final Queue<File> files;
+
     public BinaryFileFilter() {
+        this(getDefaultPatterns());
+    }
+
+    /**
+     *
+     * @param patterns see {@link #WINDOWS} and {@link #LINUX}
+     */
+    public BinaryFileFilter(Set<String> patterns) {
+        this.patterns = patterns;
         files = new LinkedList<>();
     }
 
+    /**
+     *
+     * @return binaries of the operating system this runs on
+     */
+    public static Set<String> getDefaultPatterns() {
+        String osName;
+
+        osName = System.getProperty("os.name");
+        if (osName.startsWith("Win")) {
+            return WINDOWS;
+        }
+        return LINUX;
+    }
+
     public Queue<File> getFiles() {
         return files;
     }
 
+    /**
+     *
+     * @param name file name
+     * @return whether the name matches one of the patterns
+     */
+    public boolean matches(String name) {
+        for (String pattern : patterns) {
+            if (pattern.startsWith(".")
+                    ? name.endsWith(pattern) : name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean accept(File file) {
-        String name;
-
         if (!file.isFile()) {
             return false;
         }
-        name = file.getName();
-        if (name.endsWith(".exe")
-                || name.endsWith(".dll")) {
+        if (matches(file.getName())) {
             files.add(file);
         }
         return false;
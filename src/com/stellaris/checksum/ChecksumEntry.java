@@ -50,6 +50,20 @@ public class ChecksumEntry extends ScriptFilter implements FileFilter {
         return extension;
     }
 
+    /**
+     * Check whether a file below the directory of this entry is covered
+     * by it, without queuing it; the file may not exist anymore
+     *
+     * @param path path relative to the directory, separated by '/'
+     * @return
+     */
+    public boolean covers(String path) {
+        if (!isRecursive() && path.indexOf('/') != -1) {
+            return false;
+        }
+        return matches(path.substring(path.lastIndexOf('/') + 1));
+    }
+
     @Override
     public boolean accept(File entry) {
         if (!isRecursive() && entry.isDirectory()) {
@@ -19,21 +19,36 @@ package com.stellaris.checksum;
 import com.stellaris.TokenException;
 import com.stellaris.test.Debug;
 import com.stellaris.util.Digest;
+import com.stellaris.util.DigestService;
+import com.stellaris.util.DigestStore;
+import com.stellaris.util.ScriptPath;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.*;
 
 /**
  *
@@ -43,6 +58,84 @@ public class ChecksumManifest {
 
     private static final int DEFAULT_INITSIZE = 16;
     private static final String DEFAULT_FILENAME = "checksum_manifest.txt";
+    private static final String PATH_STORE = "checksum.dig";
+    private static final String PATH_JOURNAL = "checksum.dig.journal";
+
+    private static final int QUEUE_SIZE = 1024;
+    // marks the end of the walk
+    private static final File END = new File("");
+
+    private DigestService service;
+    private boolean concurrent;
+    private int parallelism;
+    private Set<String> binaries;
+    private boolean merkle;
+    private DigestStore digestStore;
+    private File root;
+    private Map<String, ChecksumEntry> entries;
+    private ChecksumNode tree;
+    private byte[] result;
+    private int fileCount;
+    private long byteCount;
+    private long elapsed;
+
+    public ChecksumManifest() {
+        service = DigestService.getDefault();
+        parallelism = 1;
+        binaries = BinaryFileFilter.getDefaultPatterns();
+    }
+
+    /**
+     *
+     * @param algorithm see {@link DigestService}
+     */
+    public void setAlgorithm(String algorithm) {
+        service = new DigestService(algorithm);
+    }
+
+    /**
+     * Compute the checksum as the root of a Merkle tree instead of one
+     * digest over all files.
+     *
+     * Digests of files are kept in a digest store in the working
+     * directory, and only files whose metadata changed are hashed on
+     * load. After a load, {@link #update(File)} applies a single change.
+     * The root differs from the streamed checksum.
+     *
+     * @param merkle
+     */
+    public void setMerkle(boolean merkle) {
+        this.merkle = merkle;
+    }
+
+    /**
+     *
+     * @param concurrent walk the directories on a separate thread while
+     * the files found so far are hashed
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    /**
+     *
+     * @param parallelism number of hashing threads for the files of a
+     * Merkle tree, or for the trees of a batch
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(Integer.toString(parallelism));
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     *
+     * @param binaries game binaries to include, see {@link BinaryFileFilter}
+     */
+    public void setBinaries(Set<String> binaries) {
+        this.binaries = binaries;
+    }
 
     private String scan(String line, Pattern pattern, String skey) {
         Matcher matcher;
@@ -64,24 +157,6 @@ public class ChecksumManifest {
         return value;
     }
 
-    private Digest digest(File file, Checksum checksum) {
-        Digest digest;
-
-        if (checksum == null) {
-            digest = new Digest(file);
-        } else {
-            digest = new Digest(file, checksum);
-        }
-        return digest;
-    }
-
-    private Digest digest(File file, String algorithm) {
-        Digest digest;
-
-        digest = new Digest(file, algorithm);
-        return digest;
-    }
-
     private void createFilter(Map<String, List<ChecksumEntry>> map,
             String type, String name, boolean recursive, String extension) {
         ChecksumEntry entry;
@@ -182,15 +257,28 @@ public class ChecksumManifest {
         }
     }
 
+    /**
+     * Compute the checksum of all files listed by the manifest of a game
+     * directory.
+     *
+     * Files are fed into one digest in a fixed order: manifest
+     * directories by name, the files below each directory by relative
+     * path, then the game binaries by name.
+     *
+     * @param path game directory
+     */
     public void load(String path) {
-        File root;
         File file;
         Map<String, List<ChecksumEntry>> map;
-        Map<String, ChecksumEntry> entries;
 
         root = new File(path);
         map = new HashMap<>(DEFAULT_INITSIZE);
-        entries = new HashMap<>(DEFAULT_INITSIZE);
+        entries = new TreeMap<>();
+        tree = null;
+        result = null;
+        fileCount = 0;
+        byteCount = 0;
+        elapsed = 0;
         // load checksum_manifest.txt
         file = new File(root, DEFAULT_FILENAME);
         if (!file.isFile()) {
@@ -200,32 +288,244 @@ public class ChecksumManifest {
         // generate file filters
         integrate(map, entries);
         // dig into root directory
-        filter(root, entries);
+        if (merkle) {
+            build(root, entries);
+        } else {
+            filter(root, entries);
+        }
     }
 
-    private void filter(File root, Map<String, ChecksumEntry> map) {
-        Set<String> keyset;
-        File file;
+    private void build(File root, Map<String, ChecksumEntry> map) {
+        BlockingQueue<File> queue;
+        List<File> list;
+        String dirWorking;
+        long start;
+
+        start = System.nanoTime();
+        if (digestStore == null) {
+            dirWorking = DigestStore.getUserDir();
+            // shared by every game directory
+            digestStore = new DigestStore(new File(dirWorking, PATH_STORE),
+                    new File(dirWorking, PATH_JOURNAL),
+                    service.getAlgorithm(), true);
+        }
+        digestStore.setAlgorithm(service.getAlgorithm());
+        digestStore.resetCounters();
+        queue = new LinkedBlockingQueue<>();
+        try {
+            walk(root, map, queue);
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        list = new ArrayList<>(queue);
+        digestStore.matches(list, parallelism);
+        tree = new ChecksumNode();
+        for (File file : list) {
+            tree.put(ScriptPath.getRelativePath(root, file),
+                    digestStore.getResult(file));
+            ++fileCount;
+            byteCount += file.length();
+        }
+        result = tree.digest(service);
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Apply the change of a single file to the Merkle tree; only the
+     * file and the directories above it are hashed again
+     *
+     * @param file a changed, new or deleted file
+     * @return false if the file is not covered by the manifest
+     */
+    public boolean update(File file) {
+        String path;
         ChecksumEntry entry;
-        FileFilter filter;
-        Queue<File> dirs;
-        Queue<File> files;
+        int idx;
+
+        if (tree == null) {
+            throw new IllegalStateException();
+        }
+        path = ScriptPath.getRelativePath(root, file);
+        if (path == null) {
+            return false;
+        }
+        idx = path.indexOf('/');
+        if (idx == -1) {
+            if (!new BinaryFileFilter(binaries).matches(file.getName())) {
+                return false;
+            }
+        } else {
+            // same extensions and depth as the walk of load()
+            entry = entries.get(path.substring(0, idx));
+            if (entry == null || !entry.covers(path.substring(idx + 1))) {
+                return false;
+            }
+        }
+        if (file.isFile()) {
+            digestStore.matches(file);
+            tree.put(path, digestStore.getResult(file));
+        } else {
+            tree.remove(path);
+        }
+        result = tree.digest(service);
+        return true;
+    }
+
+    /**
+     * Compute the checksums of many game directories with the settings
+     * of this manifest.
+     *
+     * Streamed checksums are computed one directory per worker thread.
+     * Merkle trees are built one directory after the other, each hashing
+     * its files on the worker threads, as they share the digest store of
+     * this manifest; call {@link #store()} afterwards to save it.
+     *
+     * @param paths game directories
+     * @return checksums in the order of paths, null where a directory
+     * has no manifest
+     */
+    public String[] load(List<String> paths) {
+        ExecutorService pool;
+        List<Future<String>> futures;
+        String[] res;
+        int i;
+
+        if (merkle) {
+            res = new String[paths.size()];
+            for (i = 0; i < res.length; i++) {
+                load(paths.get(i));
+                res[i] = getChecksum();
+            }
+            return res;
+        }
+        pool = Executors.newFixedThreadPool(Math.min(parallelism,
+                Math.max(1, paths.size())));
+        futures = new ArrayList<>(paths.size());
+        res = new String[paths.size()];
+        i = 0;
+        try {
+            for (final String path : paths) {
+                futures.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        ChecksumManifest cm;
+
+                        cm = new ChecksumManifest();
+                        cm.service = service;
+                        cm.binaries = binaries;
+                        cm.concurrent = concurrent;
+                        cm.load(path);
+                        return cm.getChecksum();
+                    }
+                }));
+            }
+            for (i = 0; i < res.length; i++) {
+                res[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(paths.get(i), ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return res;
+    }
+
+    /**
+     * Save the file digests of the Merkle tree
+     */
+    public void store() {
+        if (digestStore != null) {
+            digestStore.store();
+        }
+    }
+
+    /**
+     *
+     * @return number of files hashed since the last load
+     */
+    public int getRehashedCount() {
+        if (digestStore == null) {
+            return fileCount;
+        }
+        return digestStore.getRehashedCount();
+    }
+
+    private void filter(final File root, final Map<String, ChecksumEntry> map) {
+        final BlockingQueue<File> queue;
+        final Throwable[] failure;
+        Thread walker;
+        long start;
+
+        failure = new Throwable[1];
+        start = System.nanoTime();
+        if (concurrent) {
+            queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            walker = new Thread("ChecksumWalker") {
+                @Override
+                public void run() {
+                    try {
+                        walk(root, map, queue);
+                    } catch (InterruptedException ex) {
+                        // hasher gave up
+                        return;
+                    } catch (RuntimeException | Error ex) {
+                        failure[0] = ex;
+                    }
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            };
+            walker.setDaemon(true);
+            walker.start();
+        } else {
+            queue = new LinkedBlockingQueue<>();
+            walker = null;
+            try {
+                walk(root, map, queue);
+                queue.add(END);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        try {
+            result = service.digest(new QueueIterator(queue));
+        } finally {
+            if (walker != null) {
+                walker.interrupt();
+            }
+        }
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (RuntimeException) failure[0];
+        }
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Hand the files to hash over to the hashing thread, in checksum order
+     *
+     * @param root
+     * @param map manifest directories by name
+     * @param queue
+     * @throws InterruptedException
+     */
+    private void walk(final File root, Map<String, ChecksumEntry> map,
+            BlockingQueue<File> queue) throws InterruptedException {
         File dir;
-        Checksum checksum;
-        String algorithm;
-        Digest result;
+        ChecksumEntry entry;
+        List<File> list;
+        Queue<File> files;
         BinaryFileFilter bff;
 
-        keyset = map.keySet();
-        //checksum = new CRC32();
-        //checksum = new Adler32();
-        checksum = null;
-        //checksum = new BSD();
-        algorithm = "MD5";
-        result = null;
-        for (String key : keyset) {
-            file = new File(root, key);
-            if (!file.isDirectory()) {
+        for (String key : map.keySet()) {
+            dir = new File(root, key);
+            if (!dir.isDirectory()) {
                 throw new AssertionError(key);
             }
             entry = map.get(key);
@@ -235,63 +535,175 @@ public class ChecksumManifest {
             if (!entry.isRecursive()) {
                 throw new UnsupportedOperationException();
             }
-            filter = (FileFilter) entry;
-            file.listFiles(filter);
-            dirs = entry.getDirs();
-            while (!dirs.isEmpty()) {
-                // fill 'files' queue
-                dir = dirs.remove();
-                // check isRecursive()
-                dir.listFiles(filter);
-                // retrieve 'files' queue
-                files = entry.getFiles();
-                while (!files.isEmpty()) {
-                    // retrieve a file
-                    file = files.remove();
-                    // digest a file
-                    if (checksum == null && algorithm != null) {
-                        result = digest(file, algorithm);
-                    } else {
-                        result = digest(file, checksum);
-                    }
+            list = new ArrayList<>();
+            collect(dir, entry, list);
+            Collections.sort(list, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return ScriptPath.getRelativePath(root, a)
+                            .compareTo(ScriptPath.getRelativePath(root, b));
                 }
+            });
+            for (File file : list) {
+                queue.put(file);
             }
         }
 
-        bff = new BinaryFileFilter();
+        bff = new BinaryFileFilter(binaries);
         root.listFiles(bff);
         files = bff.getFiles();
-        while (!files.isEmpty()) {
-            file = files.remove();
-            if (checksum == null && algorithm != null) {
-                result = digest(file, algorithm);
-            } else {
-                result = digest(file, checksum);
+        list = new ArrayList<>(files);
+        Collections.sort(list);
+        for (File file : list) {
+            queue.put(file);
+        }
+    }
+
+    private void collect(File dir, ChecksumEntry entry, List<File> out) {
+        Queue<File> dirs;
+        Queue<File> files;
+
+        // the filter queues files and sub directories as it goes
+        dirs = entry.getDirs();
+        files = entry.getFiles();
+        dir.listFiles(entry);
+        while (true) {
+            out.addAll(files);
+            files.clear();
+            if (dirs.isEmpty()) {
+                break;
             }
+            dirs.remove().listFiles(entry);
         }
+    }
 
-        if (checksum == null) {
-            Debug.out.format("%s=\"%s\"%n",
-                    algorithm == null ? Digest.DEFAULT_ALGORITHM : algorithm,
-                    result.digest().toLowerCase());
-        } else {
-            // test output
-            long value = checksum.getValue();
-            //value &= 0xffff;
-            Debug.out.format("%s=\"%x\"%n",
-                    checksum.getClass().getSimpleName(), value);
+    /**
+     *
+     * @return checksum of the last load, or null if there was no manifest
+     */
+    public String getChecksum() {
+        if (result == null) {
+            return null;
         }
+        return new Digest(result).digest().toLowerCase();
+    }
+
+    public String getAlgorithm() {
+        return service.getAlgorithm();
+    }
+
+    public int getFileCount() {
+        return fileCount;
     }
 
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     *
+     * @return throughput of the last load in MB/s
+     */
+    public double getThroughput() {
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return byteCount / 1e6 / (elapsed / 1e9);
+    }
+
+    private class QueueIterator implements Iterator<File> {
+
+        private final BlockingQueue<File> queue;
+        private File next;
+
+        private QueueIterator(BlockingQueue<File> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            return next != END;
+        }
+
+        @Override
+        public File next() {
+            File file;
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            file = next;
+            next = null;
+            ++fileCount;
+            byteCount += file.length();
+            return file;
+        }
+    }
+
+    /**
+     * Usage: [-a algorithm] [-m] [-j threads] [-b windows|linux] dir...
+     *
+     * @param args
+     */
     public static void main(String[] args) {
         String path;
         ChecksumManifest cm;
+        List<String> paths;
+        String[] res;
+        int i;
 
-        if (args.length < 1) {
+        cm = new ChecksumManifest();
+        paths = new ArrayList<>();
+        for (i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-a":
+                    cm.setAlgorithm(args[++i]);
+                    break;
+                case "-m":
+                    cm.setMerkle(true);
+                    break;
+                case "-j":
+                    cm.setParallelism(Integer.parseInt(args[++i]));
+                    break;
+                case "-b":
+                    cm.setBinaries("windows".equals(args[++i])
+                            ? BinaryFileFilter.WINDOWS : BinaryFileFilter.LINUX);
+                    break;
+                default:
+                    paths.add(args[i]);
+                    break;
+            }
+        }
+        if (paths.isEmpty()) {
             return;
         }
-        path = args[0];
-        cm = new ChecksumManifest();
+        if (paths.size() > 1) {
+            res = cm.load(paths);
+            cm.store();
+            for (i = 0; i < res.length; i++) {
+                Debug.out.format("%s=\"%s\"\t%s%n",
+                        cm.getAlgorithm(), res[i], paths.get(i));
+            }
+            return;
+        }
+        path = paths.get(0);
+        cm.setConcurrent(true);
         cm.load(path);
+        cm.store();
+        if (cm.getChecksum() == null) {
+            Debug.err.format("No %s in \"%s\"%n", DEFAULT_FILENAME, path);
+            return;
+        }
+        Debug.out.format("%s=\"%s\"%n", cm.getAlgorithm(), cm.getChecksum());
+        Debug.out.format("[CHECKSUM]\tfiles=%d, rehashed=%d, bytes=%d, %.1f MB/s%n",
+                cm.getFileCount(), cm.getRehashedCount(),
+                cm.getByteCount(), cm.getThroughput());
     }
 }
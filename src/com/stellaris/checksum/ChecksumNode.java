@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.checksum;
+
+import com.stellaris.util.DigestService;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Node of a Merkle tree over the files of a checksum manifest.
+ *
+ * A file node holds the digest of the file. A directory node holds the
+ * digest of the names and digests of its children, in name order; it
+ * is dropped whenever a file below it changes and computed again on
+ * demand, so a change only costs the directories on its path.
+ *
+ * @author donizyo
+ */
+class ChecksumNode {
+
+    private final Map<String, ChecksumNode> children;
+    private byte[] digest;
+
+    /**
+     * Create an empty directory node
+     */
+    ChecksumNode() {
+        children = new TreeMap<>();
+    }
+
+    private ChecksumNode(byte[] digest) {
+        children = null;
+        this.digest = digest;
+    }
+
+    boolean isDirectory() {
+        return children != null;
+    }
+
+    /**
+     * Set the digest of a file, creating the directories on its path
+     *
+     * @param path '/'-separated path relative to this node
+     * @param digest
+     */
+    void put(String path, byte[] digest) {
+        ChecksumNode node, child;
+        String[] names;
+        int i;
+
+        names = path.split("/");
+        node = this;
+        for (i = 0; i < names.length - 1; i++) {
+            node.digest = null;
+            child = node.children.get(names[i]);
+            if (child == null || !child.isDirectory()) {
+                child = new ChecksumNode();
+                node.children.put(names[i], child);
+            }
+            node = child;
+        }
+        node.digest = null;
+        node.children.put(names[i], new ChecksumNode(digest));
+    }
+
+    /**
+     * Remove a file or directory, and directories left empty
+     *
+     * @param path '/'-separated path relative to this node
+     * @return whether there was such a node
+     */
+    boolean remove(String path) {
+        return remove(path.split("/"), 0);
+    }
+
+    private boolean remove(String[] names, int index) {
+        ChecksumNode child;
+
+        if (!isDirectory()) {
+            return false;
+        }
+        if (index == names.length - 1) {
+            child = children.remove(names[index]);
+        } else {
+            child = children.get(names[index]);
+            if (child == null || !child.remove(names, index + 1)) {
+                return false;
+            }
+            if (child.isDirectory() && child.children.isEmpty()) {
+                children.remove(names[index]);
+            }
+        }
+        if (child == null) {
+            return false;
+        }
+        digest = null;
+        return true;
+    }
+
+    /**
+     *
+     * @param service hashes directory nodes which have changed
+     * @return digest of this node
+     */
+    byte[] digest(DigestService service) {
+        ByteArrayOutputStream out;
+        byte[] name, result;
+
+        if (digest != null) {
+            return digest;
+        }
+        out = new ByteArrayOutputStream();
+        for (Map.Entry<String, ChecksumNode> entry : children.entrySet()) {
+            name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            result = entry.getValue().digest(service);
+            out.write(name, 0, name.length);
+            out.write(0);
+            out.write(result, 0, result.length);
+        }
+        digest = service.digest(out.toByteArray());
+        return digest;
+    }
+}
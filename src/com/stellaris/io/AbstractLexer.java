@@ -19,6 +19,11 @@ package com.stellaris.io;
 import com.stellaris.test.Debug;
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +33,8 @@ import java.util.logging.Logger;
  */
 public class AbstractLexer implements AutoCloseable {
 
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
     private Reader reader;
     private CharBuffer buffer;
     private CharBuffer bupher;
@@ -35,7 +42,7 @@ public class AbstractLexer implements AutoCloseable {
     private boolean isEOF;
 
     protected AbstractLexer(Reader in) throws IOException {
-        this(in, 65536);
+        this(in, DEFAULT_BUFFER_SIZE);
     }
 
     protected AbstractLexer(Reader in, int bufferSize) throws IOException {
@@ -50,12 +57,118 @@ public class AbstractLexer implements AutoCloseable {
         isEOF = false;
     }
 
+    /**
+     * Lex a fully decoded input, such as the one returned by
+     * {@link #map(File)}. Lines are sliced out of the input buffer, so
+     * neither buffer swapping nor per-line copying will happen.
+     *
+     * @param in
+     */
+    protected AbstractLexer(CharBuffer in) {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        if (!in.hasArray() || in.arrayOffset() != 0) {
+            throw new IllegalArgumentException("Unsupported char buffer");
+        }
+        reader = null;
+        buffer = in;
+        bupher = null;
+        line = 0;
+        isEOF = true;
+    }
+
+    /**
+     * Decode an UTF-8 file from a memory-mapped buffer.
+     *
+     * The leading UTF-8 BOM is skipped in place, and ASCII bytes are
+     * widened directly; the charset decoder is only involved from the
+     * first non-ASCII byte onwards.
+     *
+     * @param file
+     * @return decoded file content
+     * @throws IOException
+     */
+    public static CharBuffer map(File file) throws IOException {
+        ByteBuffer in;
+        long size;
+
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        try (FileInputStream finput = new FileInputStream(file);
+                FileChannel channel = finput.getChannel();) {
+            size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(
+                        String.format("File is too large: %d", size)
+                );
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return decode(in);
+    }
+
+    private static CharBuffer decode(ByteBuffer in) {
+        int pos, len, i;
+        byte b;
+        char[] hb;
+        CharBuffer out;
+        CharsetDecoder decoder;
+        CoderResult res;
+
+        pos = in.position();
+        len = in.remaining();
+        // UTF-8 BOM: EF BB BF
+        if (len >= 3
+                && in.get(pos) == (byte) 0xEF
+                && in.get(pos + 1) == (byte) 0xBB
+                && in.get(pos + 2) == (byte) 0xBF) {
+            pos += 3;
+            len -= 3;
+            in.position(pos);
+        }
+        // an UTF-8 sequence never decodes to more chars than bytes
+        hb = new char[len];
+        // ASCII fast path
+        for (i = 0; i < len; i++) {
+            b = in.get(pos + i);
+            if (b < 0) {
+                break;
+            }
+            hb[i] = (char) b;
+        }
+        out = CharBuffer.wrap(hb);
+        out.position(i);
+        if (i < len) {
+            in.position(pos + i);
+            decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            res = decoder.decode(in, out, true);
+            if (!res.isUnderflow()) {
+                throw new AssertionError(res);
+            }
+            res = decoder.flush(out);
+            if (!res.isUnderflow()) {
+                throw new AssertionError(res);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
     public final void setReader(Reader in) throws IOException {
         if (in == null) {
             return;
         }
         close();
         reader = in;
+        if (bupher == null) {
+            // leaving mapped input mode
+            buffer = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            bupher = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        }
         buffer.clear();
         bupher.clear();
         line = 0;
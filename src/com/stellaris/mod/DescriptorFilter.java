@@ -17,17 +17,15 @@
 package com.stellaris.mod;
 
 import com.stellaris.TokenException;
-import com.stellaris.test.Debug;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.util.Queue;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
+ * Collects a loader for each mod descriptor; mods are analyzed later,
+ * see {@link ModScheduler}.
  *
  * @author donizyo
  */
@@ -71,36 +69,18 @@ public class DescriptorFilter implements FileFilter {
         prefix = filename.substring(0, idx);
 
         try {
-            try {
-                // integer file name ==> subscribed mod descriptor
-                Integer.parseInt(prefix);
-                queue = queueRemote;
-                // workshop mods can be disabled for debugging
-                //queue = null;
-                loader = new RemoteModLoader(pathHome, file);
-            } catch (NumberFormatException ex) {
-                queue = queueLocal;
-                loader = new LocalModLoader(pathHome, file);
-            }
-            if (queue != null) {
-                try {
-                    loader.handleMod();
-                } catch (ModException ex) {
-                    Debug.err.format("[ERROR] Found at mod \"%s\"%n"
-                            + "\tname=%s%n"
-                            + "\tpath=%s%n"
-                            + "\tsver=%s%n"
-                            + "\t%s%n",
-                            ex.getMessage(),
-                            loader.name,
-                            loader.path,
-                            loader.supportedVersion,
-                            ex.getCause());
-                }
-                queue.add(loader);
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(DescriptorFilter.class.getName()).log(Level.SEVERE, filename, ex);
+            // integer file name ==> subscribed mod descriptor
+            Integer.parseInt(prefix);
+            queue = queueRemote;
+            // workshop mods can be disabled for debugging
+            //queue = null;
+            loader = new RemoteModLoader(pathHome, file);
+        } catch (NumberFormatException ex) {
+            queue = queueLocal;
+            loader = new LocalModLoader(pathHome, file);
+        }
+        if (queue != null) {
+            queue.add(loader);
         }
 
         return false;
@@ -76,7 +76,8 @@ class LocalModLoader extends ModLoader {
             dir = dirs.remove();
             dir.listFiles(sf);
             // filter directories
-            filename = ScriptPath.getPath(dir);
+            // relative to mod root, so that they match game directories
+            filename = ScriptPath.getRelativePath(root, dir);
             if (filename == null) {
                 throw new NullPointerException();
             }
@@ -23,12 +23,18 @@ import com.stellaris.Token;
 import com.stellaris.TokenException;
 import com.stellaris.script.*;
 import com.stellaris.test.Debug;
+import com.stellaris.util.DigestStore;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipException;
@@ -42,7 +48,7 @@ import javax.script.SimpleScriptContext;
  *
  * @author donizyo
  */
-public abstract class ModLoader extends SimpleEngine {
+public abstract class ModLoader extends SimpleEngine implements Closeable {
 
     private static final String DEFAULT_STELLARIS_DIRECTORY;
 
@@ -63,12 +69,26 @@ public abstract class ModLoader extends SimpleEngine {
         DEFAULT_STELLARIS_DIRECTORY = sb.toString();
     }
 
+    private static final long DEFAULT_ARCHIVE_BUDGET = 64L << 20;
+    private static final String PATH_ARCHIVE_CACHE = "mods.ast";
+    // bindings of parsed workshop archives, loaded on first use
+    private static AstStore archiveCache;
+    private static boolean isArchiveCached = true;
+    // where engine bindings are mapped, null to keep them on the heap
+    private static volatile File offHeapDirectory;
+    // threads parsing the entries of one archive
+    private static volatile int archiveParallelism = 1;
+    // bytes of archive entries being parsed at once
+    private static volatile long archiveBudget = DEFAULT_ARCHIVE_BUDGET;
+
     protected final String pathHome;
     protected String path;
     protected String name;
     protected String supportedVersion;
 
     public ModLoader(String home, File file) {
+        File dir;
+
         pathHome = home;
         try {
             path = handleFile(file);
@@ -77,23 +97,137 @@ public abstract class ModLoader extends SimpleEngine {
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        dir = offHeapDirectory;
+        if (dir != null) {
+            try {
+                setBindings(new OffHeapBindings(
+                        File.createTempFile("mod", ".ast", dir)), ENGINE_SCOPE);
+            } catch (IOException ex) {
+                // stay on the heap
+                Logger.getLogger(ModLoader.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
     }
 
     public static String getDefaultPathHome() {
         return DEFAULT_STELLARIS_DIRECTORY;
     }
 
+    /**
+     * Keep the bindings of mod loaders created afterwards in
+     * memory-mapped files, so that the heap does not grow with the
+     * number of mods analyzed; each file is deleted when its loader is
+     * closed
+     *
+     * @param dir directory of the mapped files, null to keep the
+     * bindings on the heap
+     */
+    public static void setOffHeapDirectory(File dir) {
+        offHeapDirectory = dir;
+    }
+
+    /**
+     * Parse the entries of each workshop archive on several threads.
+     * Entries are merged in archive order, so the result is the same as
+     * parsing them one after another.
+     *
+     * The budget applies to each archive: as archives of several mods
+     * are analyzed at once, up to the mod parallelism of the
+     * {@link ModScheduler} times the budget is in flight.
+     *
+     * @param parallelism 1 to parse entries on the calling thread
+     * @param budget maximum uncompressed bytes of the entries of an
+     * archive which are parsed or waiting to be merged; a larger entry
+     * is parsed alone
+     */
+    public static void setArchiveParallelism(int parallelism, long budget) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(Integer.toString(parallelism));
+        }
+        if (budget < 1) {
+            throw new IllegalArgumentException(Long.toString(budget));
+        }
+        archiveParallelism = parallelism;
+        archiveBudget = budget;
+    }
+
+    /**
+     * Remember the bindings of parsed workshop archives, and reuse them
+     * while an archive is unchanged; enabled by default
+     *
+     * @param enabled
+     */
+    public static synchronized void setArchiveCacheEnabled(boolean enabled) {
+        isArchiveCached = enabled;
+    }
+
+    /**
+     *
+     * @return null if archives are not cached
+     */
+    static synchronized AstStore getArchiveCache() {
+        if (!isArchiveCached) {
+            return null;
+        }
+        if (archiveCache == null) {
+            archiveCache = new AstStore(
+                    new File(DigestStore.getUserDir(), PATH_ARCHIVE_CACHE));
+        }
+        return archiveCache;
+    }
+
+    /**
+     * Forget the archives which are not among the given ones
+     *
+     * @param archives absolute paths of the archives to keep
+     */
+    static synchronized void retainArchiveCache(Set<String> archives) {
+        if (archiveCache != null) {
+            archiveCache.retain(archives);
+        }
+    }
+
+    /**
+     * Save the bindings of parsed workshop archives, and release the
+     * cache; it is opened again on demand
+     */
+    public static synchronized void storeArchiveCache() {
+        if (archiveCache != null) {
+            archiveCache.store();
+            archiveCache = null;
+        }
+    }
+
+    static int getArchiveParallelism() {
+        return archiveParallelism;
+    }
+
+    static long getArchiveBudget() {
+        return archiveBudget;
+    }
+
     public abstract void handleMod() throws IOException;
 
     protected void handleReader(String filename, Reader reader) throws IOException {
-        ScriptContext engineContext;
+        mergeBindings(parseReader(filename, reader));
+    }
+
+    /**
+     * Parse and validate a script file; safe to call from several
+     * threads at once
+     *
+     * @param filename
+     * @param reader
+     * @return bindings of the file
+     * @throws IOException
+     */
+    protected Bindings parseReader(String filename, Reader reader) throws IOException {
         ScriptContext fileContext;
         Bindings bindings;
         SyntaxValidator validator;
         int scope;
 
         validator = new SyntaxValidator();
-        engineContext = getContext();
         scope = ENGINE_SCOPE;
         // create a isolated context for current script file
         fileContext = new SimpleScriptContext();
@@ -109,12 +243,22 @@ public abstract class ModLoader extends SimpleEngine {
         bindings = fileContext.getBindings(scope);
         // validate field-type binding
         validator.validate(bindings);
+        return bindings;
+    }
+
+    /**
+     * Put the bindings of a validated file into the engine context
+     *
+     * @param bindings
+     */
+    protected void mergeBindings(Bindings bindings) {
         // if it is accepted,
         // put all bindings of the file
         // into the engine context.
         // it will be used later to check
-        // compatibility between mods
-        engineContext.getBindings(scope).putAll(bindings);
+        // compatibility between mods;
+        // off-heap bindings encode the values right away
+        getContext().getBindings(ENGINE_SCOPE).putAll(bindings);
     }
 
     /**
@@ -185,11 +329,24 @@ public abstract class ModLoader extends SimpleEngine {
         return _path;
     }
 
+    /**
+     * Find all mod descriptors, then analyze the mods on the worker
+     * threads of the default {@link Stellaris} instance
+     *
+     * @param pathHome null for the default directory
+     * @param q receives local mods
+     * @param p receives workshop mods
+     */
     public static void getModLoaders(String pathHome,
             Queue<ModLoader> q,
             Queue<ModLoader> p) {
         File dir;
         FileFilter filter;
+        List<ModLoader> loaders;
+        Stellaris main;
+        ModScheduler scheduler;
+        Set<String> archives;
+        File archive;
 
         if (pathHome == null) {
             pathHome = DEFAULT_STELLARIS_DIRECTORY;
@@ -200,6 +357,32 @@ public abstract class ModLoader extends SimpleEngine {
         }
         filter = new DescriptorFilter(pathHome, q, p);
         dir.listFiles(filter);
+        loaders = new ArrayList<>(q);
+        if (p != q) {
+            loaders.addAll(p);
+        }
+        main = Stellaris.getDefault();
+        scheduler = new ModScheduler(main == null ? 1 : main.getParallelism());
+        try {
+            scheduler.analyze(loaders);
+        } catch (InterruptedException ex) {
+            scheduler.cancel();
+            Thread.currentThread().interrupt();
+            // leave the stored cache as it was
+            return;
+        }
+        // drop unsubscribed, moved and deleted archives
+        archives = new HashSet<>();
+        for (ModLoader loader : loaders) {
+            if (loader instanceof RemoteModLoader) {
+                archive = ((RemoteModLoader) loader).getArchiveFile();
+                if (archive != null) {
+                    archives.add(archive.getAbsolutePath());
+                }
+            }
+        }
+        retainArchiveCache(archives);
+        storeArchiveCache();
     }
 
     public static Queue<ModLoader> getModLoaders() {
@@ -210,6 +393,22 @@ public abstract class ModLoader extends SimpleEngine {
         return q;
     }
 
+    /**
+     * Release the off-heap storage of the bindings, if any; the loader
+     * should not be used afterwards
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Bindings bindings;
+
+        bindings = getBindings(ENGINE_SCOPE);
+        if (bindings instanceof Closeable) {
+            ((Closeable) bindings).close();
+        }
+    }
+
     public String toString() {
         return name;
     }
@@ -226,6 +425,7 @@ public abstract class ModLoader extends SimpleEngine {
         //Debug.DEBUG = true;
         main = new Stellaris();
         Stellaris.setDefault(main);
+        main.setParallelism(Runtime.getRuntime().availableProcessors());
         main.init(path);
         main.scan(true);
         q = getModLoaders();
@@ -239,6 +439,11 @@ public abstract class ModLoader extends SimpleEngine {
             Debug.out.format("%s - %s%n",
                     ml.name, ml.supportedVersion
             );
+            try {
+                ml.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ModLoader.class.getName()).log(Level.SEVERE, ml.path, ex);
+            }
         }
     }
 }
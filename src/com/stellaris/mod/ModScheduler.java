@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.mod;
+
+import com.stellaris.test.Debug;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Analyzes discovered mods on a fixed number of worker threads.
+ *
+ * Each mod is analyzed by its own loader into its own bindings, so mods
+ * run independently; a mod which fails is reported and counted without
+ * affecting the others. Cancelling skips the mods which have not
+ * started yet, mods being analyzed are finished; skipped mods are still
+ * reported to the listener, so progress reaches the total. Running out
+ * of memory cancels the remaining mods, and the error is thrown by
+ * {@link #analyze(Collection)} once the running ones are finished.
+ *
+ * @author donizyo
+ */
+public class ModScheduler {
+
+    /**
+     * Progress of the analysis, notified on the worker threads
+     */
+    public interface Listener {
+
+        /**
+         *
+         * @param loader
+         * @param done number of mods finished or skipped, including this
+         * one
+         * @param total number of mods scheduled
+         * @param error null if the mod was analyzed without error, a
+         * {@link CancellationException} if it was skipped
+         */
+        void modFinished(ModLoader loader, int done, int total, Throwable error);
+    }
+
+    private final int parallelism;
+    private final AtomicInteger done;
+    private final AtomicInteger failed;
+    private final AtomicInteger skipped;
+    // first error which stops the analysis
+    private final AtomicReference<OutOfMemoryError> fatal;
+    private volatile Listener listener;
+    private volatile boolean cancelled;
+    private int total;
+
+    /**
+     *
+     * @param parallelism maximum number of mods analyzed at once
+     */
+    public ModScheduler(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(Integer.toString(parallelism));
+        }
+        this.parallelism = parallelism;
+        done = new AtomicInteger();
+        failed = new AtomicInteger();
+        skipped = new AtomicInteger();
+        fatal = new AtomicReference<>();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Analyze mods, blocking until all of them are finished or skipped
+     *
+     * @param loaders
+     * @return number of mods which failed
+     * @throws InterruptedException
+     * @throws OutOfMemoryError if a mod ran out of memory; the mods
+     * after it are skipped
+     */
+    public int analyze(Collection<? extends ModLoader> loaders)
+            throws InterruptedException {
+        ExecutorService pool;
+        OutOfMemoryError error;
+
+        total = loaders.size();
+        done.set(0);
+        failed.set(0);
+        skipped.set(0);
+        fatal.set(null);
+        cancelled = false;
+        if (total == 0) {
+            return 0;
+        }
+        pool = Executors.newFixedThreadPool(Math.min(parallelism, total));
+        try {
+            for (final ModLoader loader : loaders) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(loader);
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        error = fatal.get();
+        if (error != null) {
+            throw error;
+        }
+        return failed.get();
+    }
+
+    private void handle(ModLoader loader) {
+        Throwable error;
+
+        if (cancelled) {
+            skipped.incrementAndGet();
+            notify(loader, new CancellationException());
+            return;
+        }
+        error = null;
+        try {
+            loader.handleMod();
+        } catch (ModException ex) {
+            error = ex;
+            Debug.err.format("[ERROR] Found at mod \"%s\"%n"
+                    + "\tname=%s%n"
+                    + "\tpath=%s%n"
+                    + "\tsver=%s%n"
+                    + "\t%s%n",
+                    ex.getMessage(),
+                    loader.name,
+                    loader.path,
+                    loader.supportedVersion,
+                    ex.getCause());
+        } catch (IOException | RuntimeException | Error ex) {
+            error = ex;
+            if (ex instanceof OutOfMemoryError) {
+                // the other mods would fail as well
+                fatal.compareAndSet(null, (OutOfMemoryError) ex);
+                cancel();
+            }
+            Logger.getLogger(ModScheduler.class.getName()).log(Level.SEVERE, loader.path, ex);
+        }
+        if (error != null) {
+            failed.incrementAndGet();
+        }
+        notify(loader, error);
+    }
+
+    private void notify(ModLoader loader, Throwable error) {
+        Listener l;
+
+        l = listener;
+        if (l != null) {
+            l.modFinished(loader, done.incrementAndGet(), total, error);
+        } else {
+            done.incrementAndGet();
+        }
+    }
+
+    /**
+     * Skip the mods which have not started yet; the next call to
+     * {@link #analyze(Collection)} runs all of its mods again
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     *
+     * @return number of mods finished or skipped so far
+     */
+    public int getDoneCount() {
+        return done.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     *
+     * @return number of mods skipped after cancelling
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+}
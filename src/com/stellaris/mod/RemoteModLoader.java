@@ -17,15 +17,32 @@
 package com.stellaris.mod;
 
 import com.stellaris.Stellaris;
+import com.stellaris.script.AstStore;
 import com.stellaris.util.ScriptPath;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
@@ -36,16 +53,24 @@ import org.apache.commons.compress.archivers.zip.ZipFile;
 class RemoteModLoader extends ModLoader {
 
     private static final String DEFAULT_ENTRY_NAME_DESCRIPTOR = "descriptor.mod";
+    // end of central directory record
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
 
     public RemoteModLoader(String home, File file) {
         super(home, file);
     }
 
     public void handleMod() throws IOException {
-        File file;
+        handleArchive(getArchiveFile());
+    }
 
-        file = new File(pathHome, path);
-        handleArchive(file);
+    /**
+     *
+     * @return the workshop archive, null if the descriptor has no path
+     */
+    File getArchiveFile() {
+        return path == null ? null : new File(pathHome, path);
     }
 
     private static String getParentEntryName(String entryName) {
@@ -57,6 +82,81 @@ class RemoteModLoader extends ModLoader {
         return entryName.substring(0, idx);
     }
 
+    /**
+     * CRC32 of the central directory, which lists the name, size, CRC
+     * and offset of every entry
+     *
+     * @param file
+     * @return -1 if the central directory is not found
+     * @throws IOException
+     */
+    private static long getCentralDirectoryCrc(File file) throws IOException {
+        ByteBuffer tail;
+        byte[] buf;
+        long length, offset, size;
+        int len, i, n;
+        CRC32 crc;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");) {
+            length = raf.length();
+            // the record ends with a comment of up to 64 KiB
+            len = (int) Math.min(length, EOCD_SIZE + 0xffff);
+            buf = new byte[len];
+            raf.seek(length - len);
+            raf.readFully(buf);
+            tail = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+            for (i = len - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    break;
+                }
+            }
+            if (i < 0) {
+                return -1;
+            }
+            size = tail.getInt(i + 12) & 0xffffffffL;
+            offset = tail.getInt(i + 16) & 0xffffffffL;
+            if (offset + size > length) {
+                // zip64 or broken archive
+                return -1;
+            }
+            crc = new CRC32();
+            buf = new byte[8192];
+            raf.seek(offset);
+            while (size > 0) {
+                n = (int) Math.min(size, buf.length);
+                raf.readFully(buf, 0, n);
+                crc.update(buf, 0, n);
+                size -= n;
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     *
+     * @param file
+     * @param set script directories entries are filtered by
+     * @return key of the parsed archive in the archive cache, null if
+     * the archive can not be cached; it also covers the syntax bindings
+     * the entries were validated against
+     */
+    private static String getArchiveDigest(File file, Set<String> set) {
+        long crc;
+
+        try {
+            crc = getCentralDirectoryCrc(file);
+        } catch (IOException ex) {
+            Logger.getLogger(RemoteModLoader.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        if (crc == -1) {
+            return null;
+        }
+        return String.format("%d:%d:%08x:%08x:%016x", file.length(),
+                file.lastModified(), crc, set.hashCode(),
+                SyntaxValidator.getBindingDigest());
+    }
+
     private void handleArchive(final File file) throws IOException {
         Enumeration<? extends ZipArchiveEntry> entries;
         ZipArchiveEntry entry;
@@ -66,6 +166,10 @@ class RemoteModLoader extends ModLoader {
         Stellaris main;
         Set<String> set;
         boolean doParseFile;
+        List<ZipArchiveEntry> list;
+        AstStore cache;
+        String cachePath, digest;
+        Bindings bindings;
 
         main = Stellaris.getDefault();
         if (main == null) {
@@ -78,7 +182,20 @@ class RemoteModLoader extends ModLoader {
         if (set.isEmpty()) {
             throw new IllegalStateException("Script directories not found!");
         }
+        // workshop archives only change on updates
+        cache = getArchiveCache();
+        cachePath = file.getAbsolutePath();
+        digest = null;
+        if (cache != null) {
+            digest = getArchiveDigest(file, set);
+            bindings = cache.get(cachePath, digest);
+            if (bindings != null) {
+                mergeBindings(bindings);
+                return;
+            }
+        }
         try (ZipFile zf = new ZipFile(file);) {
+            list = new ArrayList<>();
             entries = zf.getEntries();
             while (entries.hasMoreElements()) {
                 entry = entries.nextElement();
@@ -94,12 +211,120 @@ class RemoteModLoader extends ModLoader {
                     continue;
                 }
                 if (entryName.endsWith(".txt")) {
-                    try (InputStream input = zf.getInputStream(entry);
+                    list.add(entry);
+                }
+            }
+            if (getArchiveParallelism() > 1 && list.size() > 1) {
+                handleEntries(zf, file, list);
+            } else {
+                for (ZipArchiveEntry e : list) {
+                    filename = ScriptPath.getModArchivePath(file, e.getName());
+                    try (InputStream input = zf.getInputStream(e);
                             Reader reader = new InputStreamReader(input);) {
                         handleReader(filename, reader);
                     }
                 }
             }
         }
+        if (cache != null) {
+            // only archives parsed without error get here
+            cache.put(cachePath, digest,
+                    getContext().getBindings(ScriptContext.ENGINE_SCOPE));
+        }
+    }
+
+    /**
+     * Parse entries on a thread pool, each worker reading its own entry
+     * stream, and merge them in archive order
+     *
+     * The budget bounds the uncompressed size of the entries which are
+     * parsed or waiting to be merged. Entries are submitted in archive
+     * order; while the next one does not fit, the oldest entry is merged
+     * first, so an entry larger than the budget is parsed alone.
+     *
+     * @param zf
+     * @param file
+     * @param list
+     * @throws IOException
+     */
+    private void handleEntries(final ZipFile zf, final File file,
+            List<ZipArchiveEntry> list) throws IOException {
+        ExecutorService pool;
+        long budget, used, size;
+        long[] costs;
+        List<Future<Bindings>> futures;
+        Throwable cause;
+        int i, next;
+
+        budget = getArchiveBudget();
+        used = 0;
+        costs = new long[list.size()];
+        next = 0;
+        pool = Executors.newFixedThreadPool(
+                Math.min(getArchiveParallelism(), list.size()));
+        futures = new ArrayList<>(list.size());
+        try {
+            for (i = 0; i < costs.length; i++) {
+                final ZipArchiveEntry entry;
+
+                entry = list.get(i);
+                size = entry.getSize();
+                // unknown sizes take the whole budget
+                costs[i] = size < 0 ? budget : Math.min(budget, size);
+                while (next < i && used + costs[i] > budget) {
+                    used -= costs[next];
+                    mergeNext(futures, next++);
+                }
+                used += costs[i];
+                futures.add(pool.submit(new Callable<Bindings>() {
+                    @Override
+                    public Bindings call() throws IOException {
+                        String filename;
+
+                        filename = ScriptPath.getModArchivePath(file, entry.getName());
+                        try (InputStream input = zf.getInputStream(entry);
+                                Reader reader = new InputStreamReader(input);) {
+                            return parseReader(filename, reader);
+                        }
+                    }
+                }));
+            }
+            while (next < costs.length) {
+                mergeNext(futures, next++);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(file.getPath());
+        } catch (ExecutionException ex) {
+            // the first failing entry in archive order, like a serial parse
+            cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            // entries not merged yet are cancelled
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merge a parsed entry, then drop it so it can be collected
+     *
+     * @param futures
+     * @param index
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void mergeNext(List<Future<Bindings>> futures, int index)
+            throws InterruptedException, ExecutionException {
+        mergeBindings(futures.get(index).get());
+        futures.set(index, null);
     }
 }
@@ -21,6 +21,7 @@ import com.stellaris.Type;
 import com.stellaris.script.ScriptValue;
 import com.stellaris.script.SimpleFactory;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import javax.script.Bindings;
@@ -31,20 +32,26 @@ import javax.script.Bindings;
  */
 public class SyntaxValidator {
 
+    private static final int LISTS = Type.LIST.mask() | Type.COLORLIST.mask();
+    private static final int INTEGERS = Type.RANGE.mask() | Type.FLOAT.mask();
+
     public SyntaxValidator() {
     }
 
-    private boolean isValidType(Type type, Set<Type> bindset) {
+    /**
+     *
+     * @param type
+     * @param bindset type mask of the syntax binding
+     * @return
+     */
+    private boolean isValidType(Type type, int bindset) {
         if (type == null) {
             throw new IllegalArgumentException("Parameter 'type' is null!");
         }
-        if (bindset == null) {
-            throw new IllegalArgumentException("Parameter 'bindset' is null!");
-        }
-        if (bindset.isEmpty()) {
+        if (bindset == 0) {
             throw new IllegalArgumentException("Parameter 'bindset' is empty set!");
         }
-        if (bindset.contains(type)) {
+        if ((bindset & type.mask()) != 0) {
             return true;
         }
         // lower-ordinal type may be in fact a high-ordinal type
@@ -57,7 +64,7 @@ public class SyntaxValidator {
                 // however RANGE type cannot be empty,
                 // which means a STRUCT can never
                 // be an empty RANGE type, so is COLOR type
-                if (bindset.contains(Type.LIST) || bindset.contains(Type.COLORLIST)) {
+                if ((bindset & LISTS) != 0) {
                     return true;
                 }
                 break;
@@ -65,17 +72,14 @@ public class SyntaxValidator {
                 // a FLOAT value without decimal part
                 // is highly propable to be interpreted
                 // as an INTEGER
-                if (bindset.contains(Type.RANGE) || bindset.contains(Type.FLOAT)) {
-                    return true;
-                }
                 // RANGE type is in fact INTEGER type
-                if (bindset.contains(Type.RANGE)) {
+                if ((bindset & INTEGERS) != 0) {
                     return true;
                 }
                 break;
             case RANGE:
                 // RANGE type is in fact INTEGER type
-                if (bindset.contains(Type.INTEGER)) {
+                if ((bindset & Type.INTEGER.mask()) != 0) {
                     return true;
                 }
                 break;
@@ -87,12 +91,44 @@ public class SyntaxValidator {
         return false;
     }
 
+    /**
+     * Digest of everything {@link #validate(Bindings)} checks against:
+     * the names of the syntax bindings and their type masks
+     *
+     * @return a value which changes whenever the syntax bindings may
+     * accept or reject other scripts
+     */
+    public static long getBindingDigest() {
+        SimpleFactory factory;
+        Bindings bindings;
+        Object obj;
+        long digest, h;
+
+        factory = (SimpleFactory) Stellaris.getDefault();
+        bindings = factory.getBindings();
+        digest = bindings.size();
+        // independent of iteration order, like Map.hashCode
+        for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+            obj = entry.getValue();
+            if (!(obj instanceof ScriptValue)) {
+                continue;
+            }
+            h = entry.getKey().hashCode() * 0x9e3779b97f4a7c15L
+                    + ((ScriptValue) obj).getTypeMask();
+            h ^= h >>> 31;
+            h *= 0xbf58476d1ce4e5b9L;
+            h ^= h >>> 29;
+            digest += h;
+        }
+        return digest;
+    }
+
     public void validate(Bindings script) throws SyntaxException {
         SimpleFactory factory;
         Bindings bindings;
         Set<String> keyset;
-        Set<Type> typeset;
-        Set<Type> bindset;
+        int typeset;
+        int bindset;
         ScriptValue syntax;
         ScriptValue value;
 
@@ -112,15 +148,19 @@ public class SyntaxValidator {
                 */
                 continue;
             }
-            bindset = syntax.getTypeSet();
+            bindset = syntax.getTypeMask();
             value = (ScriptValue) script.get(key);
-            typeset = value.getTypeSet();
-            for (Type type : typeset) {
+            typeset = value.getTypeMask();
+            if ((typeset & ~bindset) == 0) {
+                // all types bound as they are
+                continue;
+            }
+            for (Type type : value.getTypeSet()) {
                 if (!isValidType(type, bindset)) {
                     throw new SyntaxException(
                             String.format("Field \"%s\" has type \"%s\","
                                     + " which is not found in %s",
-                                    key, typeset, bindset
+                                    key, value.getTypeSet(), syntax.getTypeSet()
                             )
                     );
                 }
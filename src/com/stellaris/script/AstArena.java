@@ -0,0 +1,702 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.script;
+
+import com.stellaris.Type;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.script.Bindings;
+
+/**
+ * Read-only copy of an AST in parallel primitive arrays.
+ *
+ * Nodes are numbered in depth-first order, the root struct being node
+ * 0, so the children of a struct or list directly follow it and a whole
+ * subtree is a contiguous range ending at {@link #getEnd(int)}. Each
+ * node has a kind, a parent, the symbol of its key, an int payload and
+ * a type mask; colors and ranges keep their extra numbers in a side
+ * array, strings in a string pool.
+ *
+ * The arena can be walked by index without creating any object.
+ * {@link #get(int)} creates a {@link ScriptValue} of a node on demand;
+ * structs come out as read-only views over the arena.
+ *
+ * @author donizyo
+ */
+public final class AstArena {
+
+    public static final int KIND_NULL = 0;
+    public static final int KIND_SCRIPT_NULL = 1;
+    public static final int KIND_STRUCT = 2;
+    public static final int KIND_LIST = 3;
+    public static final int KIND_COLORLIST = 4;
+    public static final int KIND_RGB = 5;
+    public static final int KIND_HSV = 6;
+    public static final int KIND_RANGE = 7;
+    public static final int KIND_BOOLEAN = 8;
+    public static final int KIND_INTEGER = 9;
+    public static final int KIND_FLOAT = 10;
+    public static final int KIND_STRING = 11;
+    public static final int KIND_REFERENCE = 12;
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private byte[] kinds;
+    private int[] parents;
+    // symbol of the key, -1 for list elements and the root
+    private int[] symbols;
+    // value, float bits, symbol, string index, offset into extras,
+    // or end of the subtree for structs and lists
+    private int[] payloads;
+    private int[] types;
+    private int size;
+    private int[] extras;
+    private int extraSize;
+    private String[] strings;
+    private int stringCount;
+
+    private AstArena() {
+        kinds = new byte[DEFAULT_CAPACITY];
+        parents = new int[DEFAULT_CAPACITY];
+        symbols = new int[DEFAULT_CAPACITY];
+        payloads = new int[DEFAULT_CAPACITY];
+        types = new int[DEFAULT_CAPACITY];
+        extras = new int[DEFAULT_CAPACITY];
+        strings = new String[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * Copy an AST into a new arena
+     *
+     * @param bindings root of the AST
+     * @return
+     * @throws IllegalArgumentException if the AST holds a value of an
+     * unknown class
+     */
+    public static AstArena of(Bindings bindings) {
+        AstArena arena;
+
+        arena = new AstArena();
+        arena.addStruct(-1, -1, ScriptValue.UNSET, bindings);
+        arena.trim();
+        return arena;
+    }
+
+    private int add(int kind, int parent, int symbol, int payload, int type) {
+        int capacity;
+
+        if (size == kinds.length) {
+            capacity = size << 1;
+            kinds = Arrays.copyOf(kinds, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            types = Arrays.copyOf(types, capacity);
+        }
+        kinds[size] = (byte) kind;
+        parents[size] = parent;
+        symbols[size] = symbol;
+        payloads[size] = payload;
+        types[size] = type;
+        return size++;
+    }
+
+    private int addExtras(int a, int b, int c, int d) {
+        int offset;
+
+        if (extraSize + 4 > extras.length) {
+            extras = Arrays.copyOf(extras, extras.length << 1);
+        }
+        offset = extraSize;
+        extras[offset] = a;
+        extras[offset + 1] = b;
+        extras[offset + 2] = c;
+        extras[offset + 3] = d;
+        extraSize += 4;
+        return offset;
+    }
+
+    private int addString(String str) {
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount << 1);
+        }
+        strings[stringCount] = str;
+        return stringCount++;
+    }
+
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, size);
+        parents = Arrays.copyOf(parents, size);
+        symbols = Arrays.copyOf(symbols, size);
+        payloads = Arrays.copyOf(payloads, size);
+        types = Arrays.copyOf(types, size);
+        extras = Arrays.copyOf(extras, extraSize);
+        strings = Arrays.copyOf(strings, stringCount);
+    }
+
+    private void addStruct(int parent, int symbol, int type, Bindings bindings) {
+        int node;
+        Object obj;
+
+        node = add(KIND_STRUCT, parent, symbol, 0, type);
+        for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+            obj = entry.getValue();
+            if (obj != null && !(obj instanceof ScriptValue)) {
+                throw new IllegalArgumentException(obj.getClass().getName());
+            }
+            addValue(node, SymbolTable.symbol(entry.getKey()), (ScriptValue) obj);
+        }
+        payloads[node] = size;
+    }
+
+    private void addValue(int parent, int symbol, ScriptValue value) {
+        ScriptRGBColor rgb;
+        ScriptHSVColor hsv;
+        ScriptRange range;
+        int node;
+
+        if (value == null) {
+            add(KIND_NULL, parent, symbol, 0, ScriptValue.UNSET);
+            return;
+        }
+        // exact classes only, subclasses may carry more state
+        if (value.getClass() == ScriptStruct.class) {
+            addStruct(parent, symbol, value.types, (ScriptStruct) value);
+        } else if (value.getClass() == ScriptList.class
+                || value.getClass() == ScriptColorList.class) {
+            node = add(value instanceof ScriptColorList
+                    ? KIND_COLORLIST : KIND_LIST,
+                    parent, symbol, 0, value.types);
+            for (ScriptValue element : (ScriptList<?>) value) {
+                addValue(node, -1, element);
+            }
+            payloads[node] = size;
+        } else if (value.getClass() == ScriptRGBColor.class) {
+            rgb = (ScriptRGBColor) value;
+            add(KIND_RGB, parent, symbol,
+                    addExtras(rgb.getRed(), rgb.getGreen(),
+                            rgb.getBlue(), rgb.getAlpha()),
+                    value.types);
+        } else if (value.getClass() == ScriptHSVColor.class) {
+            hsv = (ScriptHSVColor) value;
+            add(KIND_HSV, parent, symbol,
+                    addExtras(Float.floatToRawIntBits(hsv.getHue()),
+                            Float.floatToRawIntBits(hsv.getSaturation()),
+                            Float.floatToRawIntBits(hsv.getValue()),
+                            Float.floatToRawIntBits(hsv.getAlpha())),
+                    value.types);
+        } else if (value.getClass() == ScriptRange.class) {
+            range = (ScriptRange) value;
+            add(KIND_RANGE, parent, symbol,
+                    addExtras(range.getMin(), range.getMax(), 0, 0),
+                    value.types);
+        } else if (value.getClass() == ScriptBoolean.class) {
+            add(KIND_BOOLEAN, parent, symbol,
+                    ((ScriptBoolean) value).get() ? 1 : 0, value.types);
+        } else if (value.getClass() == ScriptInteger.class) {
+            add(KIND_INTEGER, parent, symbol,
+                    ((ScriptInteger) value).get(), value.types);
+        } else if (value.getClass() == ScriptFloat.class) {
+            add(KIND_FLOAT, parent, symbol,
+                    Float.floatToRawIntBits(((ScriptFloat) value).get()),
+                    value.types);
+        } else if (value.getClass() == ScriptString.class) {
+            add(KIND_STRING, parent, symbol,
+                    addString(((ScriptString) value).get()), value.types);
+        } else if (value.getClass() == ScriptReference.class) {
+            add(KIND_REFERENCE, parent, symbol,
+                    ((ScriptReference) value).getSymbol(), value.types);
+        } else if (value.getClass() == ScriptNull.class) {
+            add(KIND_SCRIPT_NULL, parent, symbol, 0, value.types);
+        } else {
+            throw new IllegalArgumentException(value.getClass().getName());
+        }
+    }
+
+    /**
+     *
+     * @return number of nodes, including the root
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int node) {
+        return kinds[node];
+    }
+
+    /**
+     *
+     * @param node
+     * @return parent node, -1 for the root
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     *
+     * @param node
+     * @return symbol of the key, -1 for list elements and the root
+     */
+    public int getSymbol(int node) {
+        return symbols[node];
+    }
+
+    /**
+     *
+     * @param node
+     * @return key of a struct field, null for list elements and the root
+     */
+    public String getKey(int node) {
+        return symbols[node] == -1 ? null : SymbolTable.get(symbols[node]);
+    }
+
+    /**
+     *
+     * @param node
+     * @return node following the subtree of a node
+     */
+    public int getEnd(int node) {
+        switch (kinds[node]) {
+            case KIND_STRUCT:
+            case KIND_LIST:
+            case KIND_COLORLIST:
+                return payloads[node];
+            default:
+                return node + 1;
+        }
+    }
+
+    /**
+     *
+     * @param node
+     * @return value of an integer node, 1 or 0 for a boolean node
+     */
+    public int getInt(int node) {
+        return payloads[node];
+    }
+
+    public float getFloat(int node) {
+        return Float.intBitsToFloat(payloads[node]);
+    }
+
+    /**
+     *
+     * @param node
+     * @return value of a string node, or name of a reference node
+     */
+    public String getString(int node) {
+        if (kinds[node] == KIND_REFERENCE) {
+            return SymbolTable.get(payloads[node]);
+        }
+        return strings[payloads[node]];
+    }
+
+    /**
+     *
+     * @param node
+     * @return type mask of a node, as in {@link ScriptValue#getTypeMask()}
+     */
+    public int getTypeMask(int node) {
+        return types[node];
+    }
+
+    /**
+     *
+     * @return read-only view of the root struct
+     */
+    public Bindings getRoot() {
+        return (Bindings) get(0);
+    }
+
+    /**
+     * Create a value of a node. Structs are read-only views over the
+     * arena, other values are copies.
+     *
+     * @param node
+     * @return
+     */
+    public ScriptValue get(int node) {
+        ScriptValue value;
+        ScriptList<ScriptValue> list;
+        ScriptColorList colorList;
+        int child, end, offset;
+
+        offset = payloads[node];
+        switch (kinds[node]) {
+            case KIND_NULL:
+                return null;
+            case KIND_SCRIPT_NULL:
+                value = new ScriptNull();
+                break;
+            case KIND_STRUCT:
+                value = new StructView(node);
+                break;
+            case KIND_LIST:
+                list = new ScriptList<>();
+                end = payloads[node];
+                for (child = node + 1; child < end; child = getEnd(child)) {
+                    list.add(get(child));
+                }
+                value = list;
+                break;
+            case KIND_COLORLIST:
+                colorList = new ScriptColorList();
+                end = payloads[node];
+                for (child = node + 1; child < end; child = getEnd(child)) {
+                    colorList.add((ScriptColor) get(child));
+                }
+                value = colorList;
+                break;
+            case KIND_RGB:
+                value = new ScriptRGBColor(extras[offset], extras[offset + 1],
+                        extras[offset + 2], extras[offset + 3]);
+                break;
+            case KIND_HSV:
+                value = new ScriptHSVColor(
+                        Float.intBitsToFloat(extras[offset]),
+                        Float.intBitsToFloat(extras[offset + 1]),
+                        Float.intBitsToFloat(extras[offset + 2]),
+                        Float.intBitsToFloat(extras[offset + 3]));
+                break;
+            case KIND_RANGE:
+                value = new ScriptRange(extras[offset], extras[offset + 1]);
+                break;
+            case KIND_BOOLEAN:
+                value = new ScriptBoolean(offset != 0);
+                break;
+            case KIND_INTEGER:
+                value = new ScriptInteger(offset);
+                break;
+            case KIND_FLOAT:
+                value = new ScriptFloat(Float.intBitsToFloat(offset));
+                break;
+            case KIND_STRING:
+                value = new ScriptString(strings[offset]);
+                break;
+            case KIND_REFERENCE:
+                value = new ScriptReference(SymbolTable.get(offset));
+                break;
+            default:
+                throw new AssertionError(kinds[node]);
+        }
+        value.types = types[node];
+        return value;
+    }
+
+    /**
+     * Read-only struct backed by the arena. Keys are iterated in
+     * ascending order, like {@link ScriptStruct}; above
+     * {@link ScriptStruct#LINEAR_MAX} fields lookups go through an
+     * open-addressing index of the child nodes. Both the order and the
+     * index are built on first use, once per view.
+     */
+    private class StructView extends ScriptValue implements Bindings {
+
+        private final int node;
+        // child nodes in ascending order of their keys
+        private volatile int[] order;
+        // child node + 1 hashed to each slot, 0 if empty
+        private volatile int[] slots;
+
+        private StructView(int node) {
+            super();
+            this.node = node;
+        }
+
+        protected Type getType() {
+            return Type.STRUCT;
+        }
+
+        private int[] children() {
+            int[] res;
+            int child, end, i;
+
+            end = payloads[node];
+            i = 0;
+            for (child = node + 1; child < end; child = getEnd(child)) {
+                ++i;
+            }
+            res = new int[i];
+            i = 0;
+            for (child = node + 1; child < end; child = getEnd(child)) {
+                res[i++] = child;
+            }
+            return res;
+        }
+
+        private int[] getOrder() {
+            int[] res, children;
+            final String[] names;
+            Integer[] idx;
+            int i;
+
+            res = order;
+            if (res == null) {
+                children = children();
+                names = new String[children.length];
+                idx = new Integer[children.length];
+                for (i = 0; i < children.length; i++) {
+                    names[i] = SymbolTable.get(symbols[children[i]]);
+                    idx[i] = i;
+                }
+                Arrays.sort(idx, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return names[a].compareTo(names[b]);
+                    }
+                });
+                res = new int[children.length];
+                for (i = 0; i < res.length; i++) {
+                    res[i] = children[idx[i]];
+                }
+                order = res;
+            }
+            return res;
+        }
+
+        // null if the struct is small enough to be searched linearly
+        private int[] getSlots() {
+            int[] res, children;
+            int c, i, mask;
+
+            res = slots;
+            if (res == null) {
+                children = children();
+                if (children.length <= ScriptStruct.LINEAR_MAX) {
+                    return null;
+                }
+                // at most half full
+                res = new int[Integer.highestOneBit(children.length * 2 - 1) << 1];
+                mask = res.length - 1;
+                for (c = 0; c < children.length; c++) {
+                    i = ScriptStruct.hash(symbols[children[c]]) & mask;
+                    while (res[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    res[i] = children[c] + 1;
+                }
+                slots = res;
+            }
+            return res;
+        }
+
+        private int find(Object key) {
+            int symbol, child, end, i, mask;
+            int[] table;
+
+            if (key == null) {
+                throw new NullPointerException("key can not be null");
+            }
+            if (!(key instanceof String)) {
+                throw new ClassCastException("key should be a String");
+            }
+            if (((String) key).isEmpty()) {
+                throw new IllegalArgumentException("key can not be empty");
+            }
+            symbol = SymbolTable.lookup((String) key);
+            if (symbol == -1) {
+                return -1;
+            }
+            end = payloads[node];
+            if (end - node - 1 > ScriptStruct.LINEAR_MAX) {
+                table = getSlots();
+                if (table != null) {
+                    mask = table.length - 1;
+                    i = ScriptStruct.hash(symbol) & mask;
+                    while ((child = table[i]) != 0) {
+                        if (symbols[child - 1] == symbol) {
+                            return child - 1;
+                        }
+                        i = (i + 1) & mask;
+                    }
+                    return -1;
+                }
+            }
+            for (child = node + 1; child < end; child = getEnd(child)) {
+                if (symbols[child] == symbol) {
+                    return child;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Object put(String name, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Object> toMerge) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) != -1;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int child;
+
+            child = find(key);
+            return child == -1 ? null : AstArena.this.get(child);
+        }
+
+        @Override
+        public int size() {
+            int[] res;
+            int child, end, count;
+
+            res = order;
+            if (res != null) {
+                return res.length;
+            }
+            end = payloads[node];
+            count = 0;
+            for (child = node + 1; child < end; child = getEnd(child)) {
+                ++count;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return payloads[node] == node + 1;
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            return values().contains(value);
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new ChildIterator<String>() {
+                        @Override
+                        protected String get(int child) {
+                            return SymbolTable.get(symbols[child]);
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return o instanceof String && !((String) o).isEmpty()
+                            && find(o) != -1;
+                }
+
+                @Override
+                public int size() {
+                    return StructView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return new AbstractCollection<Object>() {
+                @Override
+                public Iterator<Object> iterator() {
+                    return new ChildIterator<Object>() {
+                        @Override
+                        protected Object get(int child) {
+                            return AstArena.this.get(child);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return StructView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new ChildIterator<Entry<String, Object>>() {
+                        @Override
+                        protected Entry<String, Object> get(int child) {
+                            return new AbstractMap.SimpleImmutableEntry<String, Object>(
+                                    SymbolTable.get(symbols[child]),
+                                    AstArena.this.get(child));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return StructView.this.size();
+                }
+            };
+        }
+
+        /**
+         * Iterates the child nodes in ascending order of their keys
+         */
+        private abstract class ChildIterator<E> implements Iterator<E> {
+
+            private final int[] children;
+            private int next;
+
+            private ChildIterator() {
+                children = getOrder();
+            }
+
+            protected abstract E get(int child);
+
+            @Override
+            public boolean hasNext() {
+                return next < children.length;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(children[next++]);
+            }
+        }
+    }
+}
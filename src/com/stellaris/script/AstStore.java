@@ -0,0 +1,666 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.script;
+
+import com.stellaris.Type;
+import com.stellaris.util.DigestStore;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Binary cache of the bindings each script file is parsed into.
+ *
+ * Entries are keyed by the path and digest of their file, so a stale
+ * entry is never returned. Values are encoded together with their type
+ * sets; strings are written once per entry and referenced by index
+ * afterwards.
+ *
+ * Only the digests of stored entries are kept in memory; their data is
+ * read from the file each time they are restored. Entries put since the
+ * last {@link #store()} are held in memory until the next one. If the
+ * file is replaced by someone else, stored entries are no longer
+ * restored.
+ *
+ * Bump {@link #VERSION} whenever the parser or the encoding changes,
+ * the whole store is discarded on a version mismatch.
+ *
+ * @author donizyo
+ */
+public class AstStore {
+
+    private static final String PATH_STORE = "stellaris.ast";
+    private static final int MAGIC = 0x53415354;
+    private static final int VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_SCRIPT_NULL = 1;
+    private static final int TAG_STRUCT = 2;
+    private static final int TAG_LIST = 3;
+    private static final int TAG_COLORLIST = 4;
+    private static final int TAG_RGB = 5;
+    private static final int TAG_HSV = 6;
+    private static final int TAG_RANGE = 7;
+    private static final int TAG_BOOLEAN = 8;
+    private static final int TAG_INTEGER = 9;
+    private static final int TAG_FLOAT = 10;
+    private static final int TAG_STRING = 11;
+    private static final int TAG_REFERENCE = 12;
+
+
+    private final Map<String, Entry> entries;
+    private final File file;
+    // length and modification time of the file stored entries are in
+    private volatile long fileLength;
+    private volatile long fileModified;
+
+    public AstStore() {
+        this(new File(DigestStore.getUserDir(), PATH_STORE));
+    }
+
+    public AstStore(File file) {
+        this.file = file;
+        entries = new ConcurrentHashMap<>();
+        if (!file.isFile()) {
+            return;
+        }
+        try (CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+                DataInputStream in = new DataInputStream(counter);) {
+            load(in, counter);
+        } catch (IOException ex) {
+            entries.clear();
+            Logger.getLogger(AstStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void load(DataInputStream in, CountingInputStream counter)
+            throws IOException {
+        int count, i, len;
+        String path, digest;
+        long length, offset;
+
+        length = file.length();
+        fileModified = file.lastModified();
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            // written by another version, start over
+            return;
+        }
+        count = in.readInt();
+        for (i = 0; i < count; i++) {
+            path = in.readUTF();
+            digest = in.readUTF();
+            len = in.readInt();
+            offset = counter.getByteCount();
+            if (len < 0 || offset + len > length) {
+                throw new EOFException(path);
+            }
+            skipFully(in, len);
+            entries.put(path, new Entry(digest, offset, len));
+        }
+        fileLength = length;
+    }
+
+    private static void skipFully(DataInputStream in, int len) throws IOException {
+        int n;
+
+        while (len > 0) {
+            n = in.skipBytes(len);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            len -= n;
+        }
+    }
+
+    /**
+     * Write all entries to the file; afterwards they are read from it
+     * again instead of being held in memory
+     */
+    public synchronized void store() {
+        Map<String, Entry> sorted;
+        Map<String, Entry> written;
+        Iterator<Entry> itr;
+        Iterator<Map.Entry<String, Entry>> entryItr;
+        Map.Entry<String, Entry> e;
+        Entry entry;
+        File tmp;
+        byte[] buf;
+
+        // deterministic order
+        sorted = new TreeMap<>(entries);
+        if (!isFileUnchanged()) {
+            // the stored data of these entries is gone
+            itr = sorted.values().iterator();
+            while (itr.hasNext()) {
+                if (itr.next().data == null) {
+                    itr.remove();
+                }
+            }
+        }
+        written = new HashMap<>();
+        tmp = new File(file.getPath() + ".tmp");
+        buf = new byte[8192];
+        try (RandomAccessFile old = file.isFile()
+                ? new RandomAccessFile(file, "r") : null;
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tmp)));) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (Map.Entry<String, Entry> item : sorted.entrySet()) {
+                entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeUTF(entry.digest);
+                out.writeInt(entry.length);
+                written.put(item.getKey(),
+                        new Entry(entry.digest, out.size(), entry.length));
+                if (entry.data != null) {
+                    out.write(entry.data);
+                } else {
+                    copy(old, entry, out, buf);
+                }
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            Logger.getLogger(AstStore.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            tmp.delete();
+            Logger.getLogger(AstStore.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        fileLength = file.length();
+        fileModified = file.lastModified();
+        for (Map.Entry<String, Entry> item : sorted.entrySet()) {
+            // unless it was replaced meanwhile
+            entries.replace(item.getKey(), item.getValue(),
+                    written.get(item.getKey()));
+        }
+        // entries of the old file which were not written
+        entryItr = entries.entrySet().iterator();
+        while (entryItr.hasNext()) {
+            e = entryItr.next();
+            if (e.getValue().data == null
+                    && e.getValue() != written.get(e.getKey())) {
+                entryItr.remove();
+            }
+        }
+    }
+
+    private static void copy(RandomAccessFile in, Entry entry,
+            DataOutputStream out, byte[] buf) throws IOException {
+        int len, n;
+
+        if (in == null) {
+            throw new FileNotFoundException();
+        }
+        in.seek(entry.offset);
+        len = entry.length;
+        while (len > 0) {
+            n = Math.min(len, buf.length);
+            in.readFully(buf, 0, n);
+            out.write(buf, 0, n);
+            len -= n;
+        }
+    }
+
+    private boolean isFileUnchanged() {
+        return file.length() == fileLength
+                && file.lastModified() == fileModified;
+    }
+
+    // data of a stored entry
+    private byte[] read(Entry entry) throws IOException {
+        byte[] data;
+
+        if (!isFileUnchanged()) {
+            throw new IOException("Store was replaced: " + file);
+        }
+        data = new byte[entry.length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");) {
+            in.seek(entry.offset);
+            in.readFully(data);
+        }
+        return data;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @param path script path of the file
+     * @param digest current digest of the file
+     * @return restored bindings, or null if there is no matching entry
+     */
+    public Bindings get(String path, String digest) {
+        Entry entry;
+
+        if (path == null || digest == null) {
+            return null;
+        }
+        entry = entries.get(path);
+        if (entry == null || !entry.digest.equals(digest)) {
+            return null;
+        }
+        try {
+            return decode(entry.data != null ? entry.data : read(entry));
+        } catch (IOException | RuntimeException ex) {
+            // corrupted entry
+            entries.remove(path);
+            return null;
+        }
+    }
+
+    /**
+     * Remember the bindings of a file; must be invoked before they are
+     * merged with other files, since merging changes their type sets
+     *
+     * @param path script path of the file
+     * @param digest current digest of the file
+     * @param bindings
+     */
+    public void put(String path, String digest, Bindings bindings) {
+        if (path == null || digest == null) {
+            return;
+        }
+        entries.put(path, new Entry(digest, encode(bindings)));
+    }
+
+    public void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * Drop entries of files that are not in the given set
+     *
+     * @param paths
+     */
+    public void retain(Set<String> paths) {
+        entries.keySet().retainAll(paths);
+    }
+
+    public static byte[] encode(Bindings bindings) {
+        ByteArrayOutputStream bout;
+        DataOutputStream out;
+        Encoder encoder;
+
+        bout = new ByteArrayOutputStream(4096);
+        out = new DataOutputStream(bout);
+        encoder = new Encoder(out);
+        try {
+            encoder.writeBindings(bindings);
+            out.flush();
+        } catch (IOException ex) {
+            // never thrown by ByteArrayOutputStream
+            throw new AssertionError(ex);
+        }
+        return bout.toByteArray();
+    }
+
+    public static Bindings decode(byte[] data) throws IOException {
+        DataInputStream in;
+        Decoder decoder;
+
+        in = new DataInputStream(new ByteArrayInputStream(data));
+        decoder = new Decoder(in);
+        return decoder.readBindings(new SimpleBindings());
+    }
+
+    /**
+     * Encode a single value, see {@link OffHeapBindings}
+     *
+     * @param value
+     * @return
+     */
+    static byte[] encodeValue(ScriptValue value) {
+        ByteArrayOutputStream bout;
+        DataOutputStream out;
+        Encoder encoder;
+
+        bout = new ByteArrayOutputStream(256);
+        out = new DataOutputStream(bout);
+        encoder = new Encoder(out);
+        try {
+            encoder.writeValue(value);
+            out.flush();
+        } catch (IOException ex) {
+            // never thrown by ByteArrayOutputStream
+            throw new AssertionError(ex);
+        }
+        return bout.toByteArray();
+    }
+
+    static ScriptValue decodeValue(byte[] data) throws IOException {
+        DataInputStream in;
+        Decoder decoder;
+
+        in = new DataInputStream(new ByteArrayInputStream(data));
+        decoder = new Decoder(in);
+        return decoder.readValue();
+    }
+
+    private static class Entry {
+
+        private final String digest;
+        // null if the entry is in the file
+        private final byte[] data;
+        private final long offset;
+        private final int length;
+
+        private Entry(String digest, byte[] data) {
+            this.digest = digest;
+            this.data = data;
+            offset = -1;
+            length = data.length;
+        }
+
+        private Entry(String digest, long offset, int length) {
+            this.digest = digest;
+            data = null;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Encoder {
+
+        private final DataOutput out;
+        private final Map<String, Integer> strings;
+
+        private Encoder(DataOutput out) {
+            this.out = out;
+            strings = new HashMap<>();
+        }
+
+        private void writeString(String str) throws IOException {
+            Integer idx;
+
+            if (str == null) {
+                out.writeInt(-1);
+                return;
+            }
+            idx = strings.get(str);
+            if (idx != null) {
+                out.writeInt(idx);
+                return;
+            }
+            strings.put(str, strings.size());
+            out.writeInt(-2);
+            out.writeUTF(str);
+        }
+
+        private void writeBindings(Map<String, Object> bindings) throws IOException {
+            Object obj;
+
+            out.writeInt(bindings.size());
+            for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+                writeString(entry.getKey());
+                obj = entry.getValue();
+                if (obj != null && !(obj instanceof ScriptValue)) {
+                    throw new IllegalArgumentException(obj.getClass().getName());
+                }
+                writeValue((ScriptValue) obj);
+            }
+        }
+
+        private void writeTypeSet(ScriptValue value) throws IOException {
+            int mask;
+
+            mask = value.types;
+            if (mask == ScriptValue.UNSET) {
+                out.writeByte(-1);
+                return;
+            }
+            out.writeByte(Integer.bitCount(mask));
+            for (Type t : value.getTypeSet()) {
+                out.writeByte(t.ordinal());
+            }
+        }
+
+        private void writeValue(ScriptValue value) throws IOException {
+            ScriptRGBColor rgb;
+            ScriptHSVColor hsv;
+            ScriptRange range;
+            ScriptList<?> list;
+
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+                return;
+            }
+            // exact classes only, subclasses may carry more state
+            if (value.getClass() == ScriptStruct.class) {
+                out.writeByte(TAG_STRUCT);
+                writeTypeSet(value);
+                writeBindings((ScriptStruct) value);
+            } else if (value.getClass() == ScriptList.class
+                    || value.getClass() == ScriptColorList.class) {
+                out.writeByte(value instanceof ScriptColorList
+                        ? TAG_COLORLIST : TAG_LIST);
+                writeTypeSet(value);
+                list = (ScriptList<?>) value;
+                out.writeInt(list.size());
+                for (ScriptValue element : list) {
+                    writeValue(element);
+                }
+            } else if (value.getClass() == ScriptRGBColor.class) {
+                rgb = (ScriptRGBColor) value;
+                out.writeByte(TAG_RGB);
+                writeTypeSet(value);
+                out.writeInt(rgb.getRed());
+                out.writeInt(rgb.getGreen());
+                out.writeInt(rgb.getBlue());
+                out.writeInt(rgb.getAlpha());
+            } else if (value.getClass() == ScriptHSVColor.class) {
+                hsv = (ScriptHSVColor) value;
+                out.writeByte(TAG_HSV);
+                writeTypeSet(value);
+                out.writeFloat(hsv.getHue());
+                out.writeFloat(hsv.getSaturation());
+                out.writeFloat(hsv.getValue());
+                out.writeFloat(hsv.getAlpha());
+            } else if (value.getClass() == ScriptRange.class) {
+                range = (ScriptRange) value;
+                out.writeByte(TAG_RANGE);
+                writeTypeSet(value);
+                out.writeInt(range.getMin());
+                out.writeInt(range.getMax());
+            } else if (value.getClass() == ScriptBoolean.class) {
+                out.writeByte(TAG_BOOLEAN);
+                writeTypeSet(value);
+                out.writeBoolean(((ScriptBoolean) value).get());
+            } else if (value.getClass() == ScriptInteger.class) {
+                out.writeByte(TAG_INTEGER);
+                writeTypeSet(value);
+                out.writeInt(((ScriptInteger) value).get());
+            } else if (value.getClass() == ScriptFloat.class) {
+                out.writeByte(TAG_FLOAT);
+                writeTypeSet(value);
+                out.writeFloat(((ScriptFloat) value).get());
+            } else if (value.getClass() == ScriptString.class) {
+                out.writeByte(TAG_STRING);
+                writeTypeSet(value);
+                writeString(((ScriptString) value).get());
+            } else if (value.getClass() == ScriptReference.class) {
+                out.writeByte(TAG_REFERENCE);
+                writeTypeSet(value);
+                writeString(((ScriptReference) value).get());
+            } else if (value.getClass() == ScriptNull.class) {
+                out.writeByte(TAG_SCRIPT_NULL);
+                writeTypeSet(value);
+            } else {
+                throw new IllegalArgumentException(value.getClass().getName());
+            }
+        }
+    }
+
+    private static class Decoder {
+
+        private final DataInput in;
+        private final List<String> strings;
+
+        private Decoder(DataInput in) {
+            this.in = in;
+            strings = new ArrayList<>();
+        }
+
+        private String readString() throws IOException {
+            int idx;
+            String str;
+
+            idx = in.readInt();
+            switch (idx) {
+                case -1:
+                    return null;
+                case -2:
+                    str = in.readUTF();
+                    strings.add(str);
+                    return str;
+                default:
+                    return strings.get(idx);
+            }
+        }
+
+        private <T extends Bindings> T readBindings(T bindings) throws IOException {
+            int count, i;
+            String key;
+
+            count = in.readInt();
+            for (i = 0; i < count; i++) {
+                key = readString();
+                bindings.put(key, readValue());
+            }
+            return bindings;
+        }
+
+        private int readTypeSet() throws IOException {
+            int count, i;
+            int mask;
+
+            count = in.readByte();
+            if (count == -1) {
+                return ScriptValue.UNSET;
+            }
+            mask = 0;
+            for (i = 0; i < count; i++) {
+                mask |= 1 << in.readByte();
+            }
+            return mask;
+        }
+
+        private ScriptValue readValue() throws IOException {
+            int tag, count, i;
+            int types;
+            ScriptValue value;
+            ScriptList<ScriptValue> list;
+            ScriptColorList colorList;
+
+            tag = in.readByte();
+            if (tag == TAG_NULL) {
+                return null;
+            }
+            types = readTypeSet();
+            switch (tag) {
+                case TAG_SCRIPT_NULL:
+                    value = new ScriptNull();
+                    break;
+                case TAG_STRUCT:
+                    value = readBindings(new ScriptStruct());
+                    break;
+                case TAG_LIST:
+                    list = new ScriptList<>();
+                    count = in.readInt();
+                    for (i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    value = list;
+                    break;
+                case TAG_COLORLIST:
+                    colorList = new ScriptColorList();
+                    count = in.readInt();
+                    for (i = 0; i < count; i++) {
+                        colorList.add((ScriptColor) readValue());
+                    }
+                    value = colorList;
+                    break;
+                case TAG_RGB:
+                    value = new ScriptRGBColor(in.readInt(), in.readInt(),
+                            in.readInt(), in.readInt());
+                    break;
+                case TAG_HSV:
+                    value = new ScriptHSVColor(in.readFloat(), in.readFloat(),
+                            in.readFloat(), in.readFloat());
+                    break;
+                case TAG_RANGE:
+                    value = new ScriptRange(in.readInt(), in.readInt());
+                    break;
+                case TAG_BOOLEAN:
+                    value = new ScriptBoolean(in.readBoolean());
+                    break;
+                case TAG_INTEGER:
+                    value = new ScriptInteger(in.readInt());
+                    break;
+                case TAG_FLOAT:
+                    value = new ScriptFloat(in.readFloat());
+                    break;
+                case TAG_STRING:
+                    value = new ScriptString(readString());
+                    break;
+                case TAG_REFERENCE:
+                    value = new ScriptReference(readString());
+                    break;
+                default:
+                    throw new IOException("Unknown tag: " + tag);
+            }
+            value.types = types;
+            return value;
+        }
+    }
+}
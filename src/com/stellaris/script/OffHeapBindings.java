@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.script;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.script.Bindings;
+
+/**
+ * Bindings keeping their values outside of the heap.
+ *
+ * Values are encoded like in the {@link AstStore} and appended to
+ * direct buffers, or to a memory-mapped file; only the keys and the
+ * location of each value stay on the heap. {@link #get(Object)} decodes
+ * a new copy of the value every time it is called, so changing a value
+ * taken from these bindings has no effect unless it is put back.
+ *
+ * Storage is append-only: replaced and removed values keep their space
+ * until {@link #clear()}. {@link #close()} releases the storage and
+ * deletes the mapped file.
+ *
+ * @author donizyo
+ */
+public class OffHeapBindings implements Bindings, Closeable {
+
+    private static final int MIN_SEGMENT = 1 << 16;
+    private static final int MAX_SEGMENT = 1 << 26;
+
+    // null for direct buffers
+    private final FileChannel channel;
+    private final File file;
+    private final List<ByteBuffer> segments;
+    // segment << 32 | offset of each value
+    private final Map<String, Long> index;
+    // bytes of the file mapped so far
+    private long mapped;
+    private long used;
+
+    /**
+     * Create bindings stored in direct buffers
+     */
+    public OffHeapBindings() {
+        channel = null;
+        file = null;
+        segments = new ArrayList<>();
+        index = new HashMap<>();
+    }
+
+    /**
+     * Create bindings stored in a memory-mapped file, which is
+     * overwritten, and deleted on close
+     *
+     * @param file
+     * @throws IOException
+     */
+    @SuppressWarnings("resource")
+    public OffHeapBindings(File file) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        this.file = file;
+        segments = new ArrayList<>();
+        index = new HashMap<>();
+    }
+
+    private ByteBuffer allocate(int length) throws IOException {
+        ByteBuffer last, buf;
+        int capacity;
+
+        last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        capacity = last == null
+                ? MIN_SEGMENT
+                : Math.min(MAX_SEGMENT, last.capacity() << 1);
+        capacity = Math.max(capacity, length);
+        if (channel == null) {
+            buf = ByteBuffer.allocateDirect(capacity);
+        } else {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, mapped, capacity);
+            mapped += capacity;
+        }
+        segments.add(buf);
+        return buf;
+    }
+
+    private long write(ScriptValue value) {
+        byte[] data;
+        ByteBuffer buf;
+        int offset;
+
+        data = AstStore.encodeValue(value);
+        buf = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        try {
+            if (buf == null || buf.remaining() < data.length + 4) {
+                buf = allocate(data.length + 4);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        offset = buf.position();
+        buf.putInt(data.length);
+        buf.put(data);
+        used += data.length + 4;
+        return (long) (segments.size() - 1) << 32 | offset;
+    }
+
+    private ScriptValue read(long location) {
+        ByteBuffer buf;
+        byte[] data;
+        int offset;
+
+        buf = segments.get((int) (location >>> 32)).duplicate();
+        offset = (int) location;
+        data = new byte[buf.getInt(offset)];
+        buf.position(offset + 4);
+        buf.get(data);
+        try {
+            return AstStore.decodeValue(data);
+        } catch (IOException ex) {
+            // written by this instance
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static String checkKey(Object key) {
+        String name;
+
+        if (key == null) {
+            throw new NullPointerException("key can not be null");
+        }
+        if (!(key instanceof String)) {
+            throw new ClassCastException("key should be a String");
+        }
+        name = (String) key;
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("key can not be empty");
+        }
+        return name;
+    }
+
+    private static ScriptValue checkValue(Object value) {
+        if (value != null && !(value instanceof ScriptValue)) {
+            throw new IllegalArgumentException(value.getClass().getName());
+        }
+        return (ScriptValue) value;
+    }
+
+    /**
+     *
+     * @return bytes written outside of the heap
+     */
+    public long getOffHeapSize() {
+        return used;
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        Long old;
+
+        old = index.put(checkKey(name), write(checkValue(value)));
+        return old == null ? null : read(old);
+    }
+
+    /**
+     * Unlike {@link #put(String, Object)}, replaced values are not
+     * decoded
+     *
+     * @param toMerge
+     */
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> toMerge) {
+        if (toMerge == null) {
+            throw new NullPointerException("toMerge map is null");
+        }
+        for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet()) {
+            index.put(checkKey(entry.getKey()), write(checkValue(entry.getValue())));
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(checkKey(key));
+    }
+
+    @Override
+    public Object get(Object key) {
+        Long location;
+
+        location = index.get(checkKey(key));
+        return location == null ? null : read(location);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Long old;
+
+        old = index.remove(checkKey(key));
+        return old == null ? null : read(old);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+        // keep the space, overwrite it from the start
+        for (ByteBuffer buf : segments) {
+            buf.clear();
+        }
+        if (!segments.isEmpty()) {
+            segments.subList(1, segments.size()).clear();
+            mapped = segments.get(0).capacity();
+        }
+        used = 0;
+    }
+
+    /**
+     * Release the storage of the values and delete the mapped file; the
+     * bindings are empty afterwards and should not be used anymore
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        index.clear();
+        for (ByteBuffer buf : segments) {
+            unmap(buf);
+        }
+        segments.clear();
+        mapped = 0;
+        used = 0;
+        if (channel == null) {
+            return;
+        }
+        channel.close();
+        // fails on Windows while a mapping is still alive
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Free the memory of a direct or mapped buffer right away instead of
+     * when it is collected, where the runtime allows it
+     *
+     * @param buf not used afterwards
+     */
+    private static void unmap(ByteBuffer buf) {
+        Method method;
+        Object cleaner;
+
+        try {
+            method = buf.getClass().getMethod("cleaner");
+            method.setAccessible(true);
+            cleaner = method.invoke(buf);
+            if (cleaner != null) {
+                method = cleaner.getClass().getMethod("clean");
+                method.setAccessible(true);
+                method.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // left to the garbage collector
+        }
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return index.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new AbstractCollection<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                final Iterator<Long> itr;
+
+                itr = index.values().iterator();
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return read(itr.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        itr.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                final Iterator<Map.Entry<String, Long>> itr;
+
+                itr = index.entrySet().iterator();
+                return new Iterator<Entry<String, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        Map.Entry<String, Long> entry;
+
+                        entry = itr.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(
+                                entry.getKey(), (Object) read(entry.getValue()));
+                    }
+
+                    @Override
+                    public void remove() {
+                        itr.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+}
@@ -43,6 +43,22 @@ public class ScriptHSVColor extends ScriptColor {
         this.a = a;
     }
 
+    public float getHue() {
+        return h;
+    }
+
+    public float getSaturation() {
+        return s;
+    }
+
+    public float getValue() {
+        return v;
+    }
+
+    public float getAlpha() {
+        return a;
+    }
+
     public String getColorSpace() {
         return COLOR_SPACE_HSV;
     }
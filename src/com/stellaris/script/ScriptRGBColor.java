@@ -43,6 +43,22 @@ public class ScriptRGBColor extends ScriptColor {
         this.a = a;
     }
 
+    public int getRed() {
+        return r;
+    }
+
+    public int getGreen() {
+        return g;
+    }
+
+    public int getBlue() {
+        return b;
+    }
+
+    public int getAlpha() {
+        return a;
+    }
+
     public String getColorSpace() {
         return COLOR_SPACE_RGB;
     }
@@ -20,16 +20,18 @@ import com.stellaris.Type;
 import javax.script.ScriptEngine;
 
 /**
+ * Reference to a variable or another definition, kept as a symbol of
+ * the {@link SymbolTable}.
  *
  * @author donizyo
  */
 public class ScriptReference extends ScriptValue {
 
-    private final String refValue;
+    private final int symbol;
 
     public ScriptReference(String value) {
         super();
-        refValue = value;
+        symbol = SymbolTable.symbol(value);
     }
 
     protected Type getType() {
@@ -37,6 +39,14 @@ public class ScriptReference extends ScriptValue {
     }
 
     public String get() {
-        return refValue;
+        return SymbolTable.get(symbol);
+    }
+
+    /**
+     *
+     * @return symbol of the referenced name
+     */
+    public int getSymbol() {
+        return symbol;
     }
 }
@@ -17,27 +17,45 @@
 package com.stellaris.script;
 
 import com.stellaris.Type;
-import java.lang.ref.SoftReference;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import javax.script.Bindings;
-import javax.script.ScriptEngine;
-import javax.script.SimpleBindings;
 
 /**
+ * Struct value, storing its fields in a pair of arrays.
+ *
+ * Keys are stored as symbols of the {@link SymbolTable} and compared as
+ * integers. Small structs are searched linearly; above
+ * {@link #LINEAR_MAX} fields an open-addressing index over the arrays
+ * is added. Views iterate the keys in ascending order, like the sorted
+ * map structs used to be stored in.
  *
  * @author donizyo
  */
 public class ScriptStruct extends ScriptValue implements Bindings {
 
-    private Bindings structValue;
+    public static final int LINEAR_MAX = 8;
+    private static final int[] EMPTY_KEYS = new int[0];
+    private static final Object[] EMPTY_VALUES = new Object[0];
+
+    // symbols of the keys, in order of insertion
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    // index + 1 of the key hashed to each slot, 0 if empty; null if small
+    private int[] slots;
 
     public ScriptStruct() {
         super();
-        structValue = new SimpleBindings(new TreeMap<>());
+        keys = EMPTY_KEYS;
+        values = EMPTY_VALUES;
     }
 
     protected Type getType() {
@@ -47,67 +65,353 @@ public class ScriptStruct extends ScriptValue implements Bindings {
     public Set<String> getChildren() {
         Set<String> res;
 
-        res = structValue.keySet();
+        res = keySet();
         return res;
     }
 
+    private static String checkKey(Object key) {
+        String name;
+
+        if (key == null) {
+            throw new NullPointerException("key can not be null");
+        }
+        if (!(key instanceof String)) {
+            throw new ClassCastException("key should be a String");
+        }
+        name = (String) key;
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("key can not be empty");
+        }
+        return name;
+    }
+
+    static int hash(int symbol) {
+        int h;
+
+        // symbols are sequential, spread them over the table
+        h = symbol * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(String key) {
+        int symbol;
+
+        symbol = SymbolTable.lookup(key);
+        return symbol == -1 ? -1 : indexOf(symbol);
+    }
+
+    private int indexOf(int symbol) {
+        int i, mask, idx;
+
+        if (slots == null) {
+            for (i = 0; i < size; i++) {
+                if (keys[i] == symbol) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        mask = slots.length - 1;
+        i = hash(symbol) & mask;
+        while ((idx = slots[i]) != 0) {
+            if (keys[idx - 1] == symbol) {
+                return idx - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void index(int idx) {
+        int i, mask;
+
+        mask = slots.length - 1;
+        i = hash(keys[idx]) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = idx + 1;
+    }
+
+    private void rehash() {
+        int i;
+
+        if (size <= LINEAR_MAX) {
+            slots = null;
+            return;
+        }
+        // at most half full
+        slots = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+        for (i = 0; i < size; i++) {
+            index(i);
+        }
+    }
+
     @Override
     public Object put(String name, Object value) {
-        return structValue.put(name, value);
+        int symbol, idx, capacity;
+        Object old;
+
+        symbol = SymbolTable.symbol(checkKey(name));
+        idx = indexOf(symbol);
+        if (idx != -1) {
+            old = values[idx];
+            values[idx] = value;
+            return old;
+        }
+        if (size == keys.length) {
+            capacity = size < LINEAR_MAX ? Math.max(1, size * 2) : size + (size >> 1);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = symbol;
+        values[size] = value;
+        ++size;
+        if (slots == null || size * 2 > slots.length) {
+            rehash();
+        } else {
+            index(size - 1);
+        }
+        return null;
     }
 
     @Override
     public void putAll(Map<? extends String, ? extends Object> toMerge) {
-        structValue.putAll(toMerge);
+        if (toMerge == null) {
+            throw new NullPointerException("toMerge map is null");
+        }
+        for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
     @Override
     public boolean containsKey(Object key) {
-        return structValue.containsKey(key);
+        return indexOf(checkKey(key)) != -1;
     }
 
     @Override
     public Object get(Object key) {
-        return structValue.get(key);
+        int idx;
+
+        idx = indexOf(checkKey(key));
+        return idx == -1 ? null : values[idx];
     }
 
     @Override
     public Object remove(Object key) {
-        return structValue.remove(key);
+        int idx;
+        Object old;
+
+        idx = indexOf(checkKey(key));
+        if (idx == -1) {
+            return null;
+        }
+        old = values[idx];
+        System.arraycopy(keys, idx + 1, keys, idx, size - idx - 1);
+        System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+        --size;
+        values[size] = null;
+        rehash();
+        return old;
     }
 
     @Override
     public int size() {
-        return structValue.size();
+        return size;
     }
 
     @Override
     public boolean isEmpty() {
-        return structValue.isEmpty();
+        return size == 0;
     }
 
     @Override
     public boolean containsValue(Object value) {
-        return structValue.containsValue(value);
+        int i;
+
+        for (i = 0; i < size; i++) {
+            if (value == null ? values[i] == null : value.equals(values[i])) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public void clear() {
-        structValue.clear();
+        keys = EMPTY_KEYS;
+        values = EMPTY_VALUES;
+        size = 0;
+        slots = null;
+    }
+
+    // sorted on every call, so nothing is kept once iteration is over
+    private String[] sortedKeys() {
+        String[] res;
+        int i;
+
+        res = new String[size];
+        for (i = 0; i < size; i++) {
+            res[i] = SymbolTable.get(keys[i]);
+        }
+        Arrays.sort(res);
+        return res;
     }
 
     @Override
     public Set<String> keySet() {
-        return structValue.keySet();
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator<String>() {
+                    @Override
+                    protected String get(String key) {
+                        return key;
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && !((String) o).isEmpty()
+                        && indexOf((String) o) != -1;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     @Override
     public Collection<Object> values() {
-        return structValue.values();
+        return new AbstractCollection<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                return new KeyIterator<Object>() {
+                    @Override
+                    protected Object get(String key) {
+                        return ScriptStruct.this.get(key);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     @Override
     public Set<Entry<String, Object>> entrySet() {
-        return structValue.entrySet();
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new KeyIterator<Entry<String, Object>>() {
+                    @Override
+                    protected Entry<String, Object> get(String key) {
+                        return new StructEntry(key, ScriptStruct.this.get(key));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates a snapshot of the sorted keys, so removing through the
+     * iterator is safe
+     */
+    private abstract class KeyIterator<E> implements Iterator<E> {
+
+        private final String[] snapshot;
+        private int next;
+
+        private KeyIterator() {
+            snapshot = sortedKeys();
+        }
+
+        protected abstract E get(String key);
+
+        @Override
+        public boolean hasNext() {
+            return next < snapshot.length;
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return get(snapshot[next++]);
+        }
+
+        @Override
+        public void remove() {
+            if (next == 0) {
+                throw new IllegalStateException();
+            }
+            ScriptStruct.this.remove(snapshot[next - 1]);
+        }
+    }
+
+    private class StructEntry implements Entry<String, Object> {
+
+        private final String key;
+        private Object value;
+
+        private StructEntry(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old;
+
+            put(key, value);
+            old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            Entry<?, ?> e;
+
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            e = (Entry<?, ?>) obj;
+            return key.equals(e.getKey())
+                    && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
     }
 }
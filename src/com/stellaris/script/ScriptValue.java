@@ -17,17 +17,26 @@
 package com.stellaris.script;
 
 import com.stellaris.Type;
-import com.stellaris.TypeComparator;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
+ * Base class of script values.
+ *
+ * The types a value has been seen with are kept as a bit mask over the
+ * ordinals of {@link Type}, so merging and checking them are bitwise
+ * operations; {@link #getTypeSet()} is a view of the mask.
  *
  * @author donizyo
  */
 public abstract class ScriptValue {
 
-    protected Set<Type> type;
+    // type info not initialized yet
+    static final int UNSET = -1;
+
+    protected int types = UNSET;
 
     public ScriptValue() {
     }
@@ -42,35 +51,123 @@ public abstract class ScriptValue {
     }
 
     public void updateTypeInfo(ScriptValue oldValue) {
-        Set<Type> set;
+        int mask;
         Type t;
 
         if (oldValue == null) {
             return;
         }
-        getTypeSet();
-        set = oldValue.type;
-        if (set == null || set.isEmpty()) {
+        getTypeMask();
+        mask = oldValue.types;
+        if (mask == UNSET || mask == 0) {
             t = oldValue.getType();
             if (t != null) {
-                type.add(t);
+                types |= t.mask();
             }
         } else {
-            type.addAll(set);
+            types |= mask;
         }
     }
 
-    public Set<Type> getTypeSet() {
+    /**
+     *
+     * @return bit mask of the types, by {@link Type#mask()}
+     */
+    public int getTypeMask() {
         Type t;
 
-        if (type == null) {
-            type = new TreeSet<>(TypeComparator.DEFAULT_COMPARATOR);
+        if (types == UNSET) {
             t = getType();
-            if (t != null) {
-                type.add(t);
+            types = t == null ? 0 : t.mask();
+        }
+        return types;
+    }
+
+    /**
+     * Types are iterated in descending order.
+     *
+     * @return modifiable view of the types
+     */
+    public Set<Type> getTypeSet() {
+        getTypeMask();
+        return new TypeSet();
+    }
+
+    private class TypeSet extends AbstractSet<Type> {
+
+        @Override
+        public Iterator<Type> iterator() {
+            return new Iterator<Type>() {
+                private int rest = types;
+                private Type last;
+
+                @Override
+                public boolean hasNext() {
+                    return rest != 0;
+                }
+
+                @Override
+                public Type next() {
+                    int ordinal;
+
+                    if (rest == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    ordinal = 31 - Integer.numberOfLeadingZeros(rest);
+                    rest &= ~(1 << ordinal);
+                    last = Type.valueOf(ordinal);
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    types &= ~last.mask();
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return Integer.bitCount(types);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Type && (types & ((Type) o).mask()) != 0;
+        }
+
+        @Override
+        public boolean add(Type t) {
+            int mask;
+
+            mask = t.mask();
+            if ((types & mask) != 0) {
+                return false;
+            }
+            types |= mask;
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int mask;
+
+            if (!contains(o)) {
+                return false;
             }
+            mask = ((Type) o).mask();
+            types &= ~mask;
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            types = 0;
         }
-        return type;
     }
 
     public static ScriptValue parseString(String str) {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.script;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Symbols for the names used as field names, struct keys and
+ * references.
+ *
+ * The same few thousand names repeat across every file; each gets one
+ * canonical instance and a small integer symbol, so the AST keeps no
+ * duplicates and can compare names by integer equality. The table is
+ * shared by every parser thread and never shrinks.
+ *
+ * @author donizyo
+ */
+public final class SymbolTable {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final ConcurrentHashMap<String, Integer> SYMBOLS
+            = new ConcurrentHashMap<>(DEFAULT_CAPACITY);
+    // names by symbol, written under the class lock before the symbol
+    // is published through SYMBOLS
+    private static volatile String[] names = new String[DEFAULT_CAPACITY];
+    private static int count;
+    // symbols asked for, including repeated ones
+    private static final LongAdder TOTAL = new LongAdder();
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Get the symbol of a name, adding it to the table if needed
+     *
+     * @param name
+     * @return symbol of the name
+     */
+    public static int symbol(String name) {
+        Integer res;
+
+        TOTAL.increment();
+        res = SYMBOLS.get(name);
+        if (res == null) {
+            res = register(name);
+        }
+        return res;
+    }
+
+    private static synchronized Integer register(String name) {
+        Integer res;
+        String[] arr;
+
+        res = SYMBOLS.get(name);
+        if (res == null) {
+            arr = names;
+            if (count == arr.length) {
+                arr = Arrays.copyOf(arr, count << 1);
+                names = arr;
+            }
+            arr[count] = name;
+            res = count++;
+            SYMBOLS.put(name, res);
+        }
+        return res;
+    }
+
+    /**
+     * Get the symbol of a name without adding it
+     *
+     * @param name
+     * @return symbol of the name, -1 if the name is not in the table
+     */
+    public static int lookup(String name) {
+        Integer res;
+
+        res = SYMBOLS.get(name);
+        return res == null ? -1 : res;
+    }
+
+    /**
+     *
+     * @param symbol
+     * @return canonical instance of the name of a symbol
+     */
+    public static String get(int symbol) {
+        return names[symbol];
+    }
+
+    /**
+     *
+     * @param name
+     * @return the canonical instance of an equal string
+     */
+    public static String intern(String name) {
+        return get(symbol(name));
+    }
+
+    /**
+     *
+     * @return number of distinct symbols
+     */
+    public static int size() {
+        return SYMBOLS.size();
+    }
+
+    /**
+     *
+     * @return number of symbols asked for, counting repeated names
+     */
+    public static long getTotalCount() {
+        return TOTAL.sum();
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a synthetic Clausewitz game tree for scale testing.
+ *
+ * Output is fully determined by the seed and the size parameters.
+ * Layout under the base directory:
+ * <pre>
+ * Stellaris/                           game root, see Stellaris.init
+ *     common/.../*.txt, events/*.txt   scripts
+ *     localisation/*_l_english.yml     localisation files
+ * Paradox Interactive/Stellaris/       mod home, see ModLoader
+ *     mod/local_N.mod, mod/local_N/    local mods
+ *     mod/N.mod, workshop/N.zip        workshop mods
+ * </pre>
+ *
+ * @author donizyo
+ */
+public class CorpusGenerator {
+
+    public static final long DEFAULT_SEED = 0x5354454C4C415249L;
+    public static final String GAME_DIRECTORY = "Stellaris";
+    public static final String HOME_DIRECTORY
+            = "Paradox Interactive" + File.separator + "Stellaris";
+
+    private static final String NEWLINE = "\r\n";
+    private static final String[] DIRECTORIES = {
+        "common/buildings",
+        "common/technology",
+        "common/species_classes",
+        "common/ship_sizes",
+        "common/component_templates",
+        "common/planet_classes",
+        "common/traits",
+        "common/policies",
+        "events"
+    };
+    private static final String[] KEYS = {
+        "cost", "upkeep", "potential", "allow", "modifier", "ai_weight",
+        "factor", "weight", "category", "prerequisites", "planet_class",
+        "owner", "has_technology", "is_colony", "is_capital", "size",
+        "tier", "icon", "base_buildtime", "trigger", "limit", "effect",
+        "immediate", "option", "add_modifier", "days", "value", "count",
+        "num_owned_planets", "has_country_flag", "country_type", "mult"
+    };
+    private static final String[] REFERENCES = {
+        "tech_lasers_1", "tech_mining_network_1", "pc_desert", "pc_ocean",
+        "pc_tundra", "root", "from", "prev", "this", "owner", "empire",
+        "physics", "society", "engineering", "default", "weapons",
+        "building_capital_1", "trait_adaptive", "ai_empire"
+    };
+    private static final String[] WORDS = {
+        "Stellar", "Empire", "Colony", "Cruiser", "Nebula", "Science",
+        "Frontier", "Outpost", "Habitat", "Caf\u00e9", "Drive", "Beacon"
+    };
+    // LangFileReader loads a whole file into a buffer of 1M chars
+    private static final int MAX_LOCALISATION_SIZE = 0x80000;
+    // fixed entry time keeps archives byte-identical between runs
+    private static final long ENTRY_TIME = 1462233600000L;
+
+    private final long seed;
+    private int fileCount;
+    private int depth;
+    private int fileSize;
+    private int localisationCount;
+    private int modCount;
+    private int modFileCount;
+
+    public CorpusGenerator() {
+        this(DEFAULT_SEED);
+    }
+
+    public CorpusGenerator(long seed) {
+        this.seed = seed;
+        fileCount = 64;
+        depth = 4;
+        fileSize = 16384;
+        localisationCount = 4096;
+        modCount = 4;
+        modFileCount = 8;
+    }
+
+    /**
+     *
+     * @param count number of script files in the game tree
+     */
+    public void setFileCount(int count) {
+        fileCount = check(count);
+    }
+
+    /**
+     *
+     * @param depth maximum nesting level of structs
+     */
+    public void setDepth(int depth) {
+        this.depth = check(depth);
+    }
+
+    /**
+     *
+     * @param bytes approximate size of each script file
+     */
+    public void setFileSize(int bytes) {
+        fileSize = check(bytes);
+    }
+
+    /**
+     *
+     * @param count number of localisation entries
+     */
+    public void setLocalisationCount(int count) {
+        localisationCount = check(count);
+    }
+
+    /**
+     * Set the number of local mods; as many workshop mods are generated
+     *
+     * @param count
+     */
+    public void setModCount(int count) {
+        modCount = check(count);
+    }
+
+    /**
+     *
+     * @param count number of script files in each mod
+     */
+    public void setModFileCount(int count) {
+        modFileCount = check(count);
+    }
+
+    private static int check(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(Integer.toString(value));
+        }
+        return value;
+    }
+
+    public static File getGameRoot(File base) {
+        return new File(base, GAME_DIRECTORY);
+    }
+
+    public static File getModHome(File base) {
+        return new File(base, HOME_DIRECTORY);
+    }
+
+    /**
+     *
+     * @param root game root
+     * @param index
+     * @return the script file generated with the given index
+     */
+    public static File getScriptFile(File root, int index) {
+        File dir;
+
+        dir = new File(root, DIRECTORIES[index % DIRECTORIES.length]);
+        return new File(dir, String.format("%05d_generated.txt", index));
+    }
+
+    public static File getLocalisationFile(File root, int index) {
+        return new File(new File(root, "localisation"),
+                String.format("generated_%03d_l_english.yml", index));
+    }
+
+    /**
+     * Generate both the game tree and the mod home
+     *
+     * @param base
+     * @throws IOException
+     */
+    public void generate(File base) throws IOException {
+        writeGame(getGameRoot(base));
+        writeMods(getModHome(base));
+    }
+
+    public void writeGame(File root) throws IOException {
+        int i;
+
+        for (i = 0; i < fileCount; i++) {
+            write(getScriptFile(root, i),
+                    script(random(i), "generated_" + i, fileSize));
+        }
+        writeLocalisation(root);
+    }
+
+    private void writeLocalisation(File root) throws IOException {
+        StringBuilder sb;
+        Random rnd;
+        int i, index;
+
+        rnd = random(-1);
+        sb = new StringBuilder();
+        index = 0;
+        for (i = 0; i < localisationCount; i++) {
+            if (sb.length() == 0) {
+                sb.append('\uFEFF').append("l_english:").append(NEWLINE);
+            }
+            sb.append(" generated_key_").append(i).append(":0 \"");
+            words(rnd, sb, 1 + rnd.nextInt(12));
+            if (rnd.nextInt(4) == 0) {
+                sb.append(" \\\"[Root.GetName]\\\"");
+            }
+            sb.append('"').append(NEWLINE);
+            if (sb.length() > MAX_LOCALISATION_SIZE) {
+                write(getLocalisationFile(root, index++), sb);
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() != 0 || index == 0) {
+            if (sb.length() == 0) {
+                sb.append('\uFEFF').append("l_english:").append(NEWLINE);
+            }
+            write(getLocalisationFile(root, index), sb);
+        }
+    }
+
+    public void writeMods(File home) throws IOException {
+        File mod, dir;
+        String name, dirName;
+        int i, j, id;
+        Random rnd;
+        StringBuilder sb;
+
+        for (i = 0; i < modCount; i++) {
+            // local mod
+            name = "local_" + i;
+            dir = new File(new File(home, "mod"), name);
+            for (j = 0; j < modFileCount; j++) {
+                rnd = random(i * 65536L + j + 1);
+                dirName = DIRECTORIES[j % DIRECTORIES.length];
+                write(new File(new File(dir, dirName),
+                        String.format("%s_%03d.txt", name, j)),
+                        script(rnd, name + "_" + j, fileSize));
+            }
+            write(new File(new File(home, "mod"), name + ".mod"),
+                    descriptor(name, "path", "mod/" + name));
+            // workshop mod
+            id = 100000 + i;
+            mod = new File(new File(home, "workshop"), id + ".zip");
+            mod.getParentFile().mkdirs();
+            try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(mod));) {
+                sb = descriptor("workshop_" + i, "archive", "workshop/" + id + ".zip");
+                putEntry(zout, "descriptor.mod", sb);
+                for (j = 0; j < modFileCount; j++) {
+                    rnd = random(-(i * 65536L + j + 2));
+                    dirName = DIRECTORIES[j % DIRECTORIES.length];
+                    sb = script(rnd, "workshop_" + i + "_" + j, fileSize);
+                    putEntry(zout, String.format("%s/workshop_%d_%03d.txt",
+                            dirName, i, j), sb);
+                }
+            }
+            write(new File(new File(home, "mod"), id + ".mod"),
+                    descriptor("workshop_" + i, "archive", "workshop/" + id + ".zip"));
+        }
+    }
+
+    private Random random(long index) {
+        // files do not depend on each other,
+        // so any subset can be regenerated alone
+        return new Random(seed * 31 + index);
+    }
+
+    private static void write(File file, CharSequence content) throws IOException {
+        File dir;
+
+        dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(dir.getPath());
+        }
+        try (OutputStream out = new FileOutputStream(file);) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void putEntry(ZipOutputStream zout, String name,
+            CharSequence content) throws IOException {
+        ZipEntry entry;
+
+        entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        zout.putNextEntry(entry);
+        zout.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        zout.closeEntry();
+    }
+
+    private static StringBuilder descriptor(String name, String key, String path) {
+        StringBuilder sb;
+
+        sb = new StringBuilder();
+        sb.append("name=\"").append(name).append('"').append(NEWLINE);
+        sb.append(key).append("=\"").append(path).append('"').append(NEWLINE);
+        sb.append("tags={").append(NEWLINE);
+        sb.append("\t\"Gameplay\"").append(NEWLINE);
+        sb.append('}').append(NEWLINE);
+        sb.append("supported_version=\"1.4.*\"").append(NEWLINE);
+        return sb;
+    }
+
+    private StringBuilder script(Random rnd, String prefix, int bytes) {
+        StringBuilder sb;
+        int i;
+
+        sb = new StringBuilder(bytes + 1024);
+        sb.append("# generated by CorpusGenerator").append(NEWLINE);
+        i = 0;
+        do {
+            if (rnd.nextInt(8) == 0) {
+                sb.append("# ");
+                words(rnd, sb, 1 + rnd.nextInt(6));
+                sb.append(NEWLINE);
+            }
+            sb.append(prefix).append('_').append(i++).append(" = {").append(NEWLINE);
+            struct(rnd, sb, 1, depth);
+            sb.append('}').append(NEWLINE);
+        } while (sb.length() < bytes);
+        return sb;
+    }
+
+    private static void indent(StringBuilder sb, int level) {
+        int i;
+
+        for (i = 0; i < level; i++) {
+            sb.append('\t');
+        }
+    }
+
+    private void struct(Random rnd, StringBuilder sb, int level, int remaining) {
+        int count, i, kind;
+
+        count = 1 + rnd.nextInt(8);
+        for (i = 0; i < count; i++) {
+            indent(sb, level);
+            sb.append(KEYS[rnd.nextInt(KEYS.length)]);
+            kind = rnd.nextInt(remaining > 1 ? 16 : 12);
+            switch (kind) {
+                case 0:
+                    sb.append(" = { min = ").append(rnd.nextInt(5))
+                            .append(" max = ").append(5 + rnd.nextInt(20))
+                            .append(" }");
+                    break;
+                case 1:
+                    sb.append(" = ");
+                    color(rnd, sb);
+                    break;
+                case 2:
+                    // color list
+                    sb.append(" = { ");
+                    color(rnd, sb);
+                    sb.append(' ');
+                    color(rnd, sb);
+                    sb.append(" }");
+                    break;
+                case 3:
+                    // plain list
+                    sb.append(" = { ");
+                    list(rnd, sb);
+                    sb.append('}');
+                    break;
+                case 4:
+                    sb.append(" = ").append(rnd.nextBoolean() ? "yes" : "no");
+                    break;
+                case 5:
+                    sb.append(" = ").append(rnd.nextInt(2000) - 1000);
+                    break;
+                case 6:
+                    sb.append(" = ").append(rnd.nextInt(1000) / 100.0f);
+                    break;
+                case 7:
+                    sb.append(" = \"");
+                    words(rnd, sb, 1 + rnd.nextInt(4));
+                    sb.append('"');
+                    break;
+                case 8:
+                    sb.append(rnd.nextBoolean() ? " > " : " < ")
+                            .append(rnd.nextInt(100));
+                    break;
+                case 9:
+                    sb.append(" = ").append(rnd.nextInt(100))
+                            .append(" # ");
+                    words(rnd, sb, 2);
+                    break;
+                case 10:
+                case 11:
+                    sb.append(" = ").append(REFERENCES[rnd.nextInt(REFERENCES.length)]);
+                    break;
+                default:
+                    sb.append(" = {").append(NEWLINE);
+                    struct(rnd, sb, level + 1, remaining - 1);
+                    indent(sb, level);
+                    sb.append('}');
+                    break;
+            }
+            sb.append(NEWLINE);
+        }
+    }
+
+    private static void color(Random rnd, StringBuilder sb) {
+        if (rnd.nextBoolean()) {
+            sb.append("rgb { ").append(rnd.nextInt(256))
+                    .append(' ').append(rnd.nextInt(256))
+                    .append(' ').append(rnd.nextInt(256));
+            if (rnd.nextInt(4) == 0) {
+                sb.append(' ').append(rnd.nextInt(256));
+            }
+        } else {
+            sb.append("hsv { ").append(rnd.nextInt(100) / 100.0f)
+                    .append(' ').append(rnd.nextInt(100) / 100.0f)
+                    .append(' ').append(rnd.nextInt(100) / 100.0f);
+        }
+        sb.append(" }");
+    }
+
+    private static void list(Random rnd, StringBuilder sb) {
+        int count, i;
+
+        count = 2 + rnd.nextInt(6);
+        for (i = 0; i < count; i++) {
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    sb.append(REFERENCES[rnd.nextInt(REFERENCES.length)]);
+                    break;
+                case 1:
+                    sb.append(rnd.nextInt(100));
+                    break;
+                default:
+                    sb.append('"').append(WORDS[rnd.nextInt(WORDS.length)]).append('"');
+                    break;
+            }
+            sb.append(' ');
+        }
+    }
+
+    private static void words(Random rnd, StringBuilder sb, int count) {
+        int i;
+
+        for (i = 0; i < count; i++) {
+            if (i != 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File base;
+        CorpusGenerator generator;
+
+        if (args.length < 1) {
+            Debug.out.format("Usage:%n\tCorpusGenerator <dir>"
+                    + " [files] [depth] [bytes] [mods] [seed]%n");
+            return;
+        }
+        base = new File(args[0]);
+        generator = args.length < 6
+                ? new CorpusGenerator()
+                : new CorpusGenerator(Long.parseLong(args[5]));
+        if (args.length > 1) {
+            generator.setFileCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.setDepth(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setFileSize(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.setModCount(Integer.parseInt(args[4]));
+        }
+        generator.generate(base);
+        Debug.out.format("Game root=\"%s\"%nMod home=\"%s\"%n",
+                getGameRoot(base).getPath(),
+                getModHome(base).getPath());
+    }
+}
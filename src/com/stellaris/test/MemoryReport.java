@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.test;
+
+import com.stellaris.Stellaris;
+import com.stellaris.script.AstArena;
+import com.stellaris.script.ScriptStruct;
+import com.stellaris.script.SymbolTable;
+import java.io.IOException;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+
+/**
+ * Reports the heap held by the AST of a game directory.
+ *
+ * The directory is scanned from scratch, and the heap in use after a
+ * full collection is compared with the heap in use before the scan,
+ * along with the number of distinct and total symbols. With
+ * {@code -arena} the AST is copied into an {@link AstArena} and only
+ * the arena is kept.
+ * Usage: {@code MemoryReport [-arena] <game directory>}
+ *
+ * @author donizyo
+ */
+public class MemoryReport {
+
+    private int fields;
+    private int structs;
+
+    private void count(Bindings bindings) {
+        Object value;
+
+        for (String key : bindings.keySet()) {
+            value = bindings.get(key);
+            ++fields;
+            if (value instanceof ScriptStruct) {
+                ++structs;
+                count((ScriptStruct) value);
+            }
+        }
+    }
+
+    private void count(AstArena arena) {
+        int i, parent;
+
+        // children follow their parents, a linear scan visits them all
+        for (i = 1; i < arena.size(); i++) {
+            parent = arena.getParent(i);
+            if (arena.getKind(parent) == AstArena.KIND_STRUCT) {
+                ++fields;
+                if (arena.getKind(i) == AstArena.KIND_STRUCT) {
+                    ++structs;
+                }
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime rt;
+        int i;
+
+        rt = Runtime.getRuntime();
+        for (i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    public static void main(String[] args) throws IOException {
+        MemoryReport report;
+        Stellaris st;
+        long before, after;
+        Bindings bindings;
+        boolean isArena;
+        AstArena arena;
+
+        if (args.length < 1) {
+            return;
+        }
+        isArena = "-arena".equals(args[0]);
+        if (isArena && args.length < 2) {
+            return;
+        }
+        report = new MemoryReport();
+        before = usedMemory();
+        st = new Stellaris();
+        Stellaris.setDefault(st);
+        st.init(args[isArena ? 1 : 0]);
+        st.scan(true);
+        bindings = st.getScriptEngine().getContext()
+                .getBindings(ScriptContext.GLOBAL_SCOPE);
+        arena = null;
+        if (isArena) {
+            arena = AstArena.of(bindings);
+            bindings.clear();
+            report.count(arena);
+        } else {
+            report.count(bindings);
+        }
+        // after the walk, so whatever it allocated is collected
+        after = usedMemory();
+        Debug.out.format("[MEMORY]\tfields=%d, structs=%d, heap=%d KiB, %.1f bytes/field%n",
+                report.fields, report.structs, (after - before) >> 10,
+                (double) (after - before) / Math.max(1, report.fields));
+        Debug.out.format("[SYMBOL]\tunique=%d, total=%d%n",
+                SymbolTable.size(), SymbolTable.getTotalCount());
+        // keep the AST reachable until measured
+        Stellaris.setDefault(st);
+        if (arena != null) {
+            Debug.out.format("[ARENA]\tnodes=%d%n", arena.size());
+        }
+    }
+}
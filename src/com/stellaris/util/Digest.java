@@ -18,11 +18,7 @@ package com.stellaris.util;
 
 import com.stellaris.test.Debug;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.zip.Checksum;
 import javax.xml.bind.DatatypeConverter;
 
@@ -39,62 +35,49 @@ public class Digest {
         this(file, DEFAULT_ALGORITHM);
     }
 
+    /**
+     *
+     * @param file
+     * @param algorithm see {@link DigestService}
+     */
     public Digest(File file, String algorithm) {
-        this(file, newMessageDigest(algorithm));
-    }
-
-    private static MessageDigest newMessageDigest(String algorithm) {
-        try {
-            return MessageDigest.getInstance(algorithm);
-        } catch (NoSuchAlgorithmException ex) {
-            throw new IllegalStateException(ex);
-        }
+        check(file);
+        result = (DEFAULT_ALGORITHM.equals(algorithm)
+                ? DigestService.getDefault()
+                : new DigestService(algorithm)).digest(file);
     }
 
+    /**
+     * Feed a file into a checksum, which is not reset before
+     *
+     * @param file
+     * @param cs
+     */
     public Digest(File file, Checksum cs) {
-        int bufsize;
-        byte[] buffer;
-        int len;
-
-        if (file == null) {
-            throw new NullPointerException();
-        }
-        if (!file.isFile()) {
-            throw new IllegalArgumentException();
-        }
-        bufsize = 1024;
-        buffer = new byte[bufsize];
-        try (FileInputStream finput = new FileInputStream(file);) {
-            while ((len = finput.read(buffer)) > 0) {
-                cs.update(buffer, 0, len);
-            }
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
+        check(file);
+        DigestService.update(file, cs);
     }
 
     public Digest(File file, MessageDigest md) {
-        int bufsize;
-        byte[] buffer;
+        check(file);
+        DigestService.update(file, md);
+        result = md.digest();
+    }
 
+    public Digest(byte[] result) {
+        this.result = result;
+    }
+
+    private static void check(File file) {
         if (file == null) {
             throw new NullPointerException();
         }
         if (!file.isFile()) {
             throw new IllegalArgumentException();
         }
-        bufsize = 1024;
-        buffer = new byte[bufsize];
-        try (FileInputStream finput = new FileInputStream(file);
-                DigestInputStream dinput = new DigestInputStream(finput, md);) {
-            while (dinput.read(buffer) > 0);
-            result = md.digest();
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
     }
 
-    private static String toString(byte[] array) {
+    static String toString(byte[] array) {
         return DatatypeConverter.printHexBinary(array);
     }
 
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 donizyo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.stellaris.util;
+
+import com.stellaris.checksum.BSD;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Hashes files with large sequential reads.
+ *
+ * Each thread owns a direct read buffer and one instance of the
+ * algorithm, which are reused for every file it hashes. Besides any
+ * {@link MessageDigest} algorithm, the checksums {@link #CRC32},
+ * {@link #ADLER32} and {@link #BSD} are supported; they are much
+ * cheaper, and good enough to detect changes.
+ *
+ * @author donizyo
+ */
+public class DigestService {
+
+    public static final String CRC32 = "CRC32";
+    public static final String ADLER32 = "ADLER32";
+    public static final String BSD = "BSD";
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    private static final DigestService DEFAULT = new DigestService(Digest.DEFAULT_ALGORITHM);
+
+    private final String algorithm;
+    private final ThreadLocal<Object> instance;
+
+    /**
+     *
+     * @param algorithm name of a MessageDigest algorithm, or one of
+     * CRC32, ADLER32 and BSD
+     */
+    public DigestService(final String algorithm) {
+        this.algorithm = algorithm;
+        // fail early on unknown algorithms
+        newInstance(algorithm);
+        instance = new ThreadLocal<Object>() {
+            @Override
+            protected Object initialValue() {
+                return newInstance(algorithm);
+            }
+        };
+    }
+
+    public static DigestService getDefault() {
+        return DEFAULT;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    private static Object newInstance(String algorithm) {
+        switch (algorithm) {
+            case CRC32:
+                return new CRC32();
+            case ADLER32:
+                return new Adler32();
+            case BSD:
+                return new BSD();
+            default:
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new IllegalArgumentException(algorithm, ex);
+                }
+        }
+    }
+
+    /**
+     * Hash a file on the calling thread
+     *
+     * @param file
+     * @return digest, or the checksum as 4 bytes in big-endian order
+     */
+    public byte[] digest(File file) {
+        Object obj;
+        MessageDigest md;
+        Checksum cs;
+
+        obj = instance.get();
+        if (obj instanceof MessageDigest) {
+            md = (MessageDigest) obj;
+            md.reset();
+            update(file, md);
+        } else {
+            cs = (Checksum) obj;
+            cs.reset();
+            update(file, cs);
+        }
+        return getResult(obj);
+    }
+
+    /**
+     * Hash a small array on the calling thread
+     *
+     * @param data
+     * @return digest, or the checksum as 4 bytes in big-endian order
+     */
+    public byte[] digest(byte[] data) {
+        Object obj;
+        MessageDigest md;
+        Checksum cs;
+
+        obj = instance.get();
+        if (obj instanceof MessageDigest) {
+            md = (MessageDigest) obj;
+            md.reset();
+            md.update(data);
+        } else {
+            cs = (Checksum) obj;
+            cs.reset();
+            cs.update(data, 0, data.length);
+        }
+        return getResult(obj);
+    }
+
+    /**
+     * Hash the content of files as one stream, in the order they are
+     * returned
+     *
+     * @param files may block while the next file is looked up
+     * @return digest of the concatenated content
+     */
+    public byte[] digest(Iterator<File> files) {
+        Object obj;
+
+        obj = newInstance(algorithm);
+        while (files.hasNext()) {
+            if (obj instanceof MessageDigest) {
+                update(files.next(), (MessageDigest) obj);
+            } else {
+                update(files.next(), (Checksum) obj);
+            }
+        }
+        return getResult(obj);
+    }
+
+    private static byte[] getResult(Object obj) {
+        long value;
+
+        if (obj instanceof MessageDigest) {
+            return ((MessageDigest) obj).digest();
+        }
+        value = ((Checksum) obj).getValue();
+        return new byte[]{
+            (byte) (value >>> 24),
+            (byte) (value >>> 16),
+            (byte) (value >>> 8),
+            (byte) value
+        };
+    }
+
+    /**
+     * Hash files on a pool of worker threads
+     *
+     * @param files
+     * @param parallelism number of threads, 1 to hash on the calling thread
+     * @return digests in the order of files
+     */
+    public byte[][] digest(List<File> files, int parallelism) {
+        byte[][] results;
+        ForkJoinPool pool;
+        int i;
+
+        results = new byte[files.size()][];
+        if (parallelism <= 1 || results.length <= 1) {
+            for (i = 0; i < results.length; i++) {
+                results[i] = digest(files.get(i));
+            }
+            return results;
+        }
+        pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DigestTask(this, files, results, 0, results.length));
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Feed the content of a file into a digest, without resetting it
+     *
+     * @param file
+     * @param md
+     */
+    public static void update(File file, MessageDigest md) {
+        ByteBuffer buf;
+
+        buf = BUFFER.get();
+        try (FileChannel fc = open(file);) {
+            while (true) {
+                buf.clear();
+                if (fc.read(buf) < 0) {
+                    break;
+                }
+                buf.flip();
+                md.update(buf);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(file.getPath(), ex);
+        }
+    }
+
+    /**
+     * Feed the content of a file into a checksum, without resetting it
+     *
+     * @param file
+     * @param cs
+     */
+    public static void update(File file, Checksum cs) {
+        ByteBuffer buf;
+        byte[] array;
+        int len;
+
+        buf = BUFFER.get();
+        array = null;
+        try (FileChannel fc = open(file);) {
+            while (true) {
+                buf.clear();
+                if (fc.read(buf) < 0) {
+                    break;
+                }
+                buf.flip();
+                // these read direct buffers without copying
+                if (cs instanceof CRC32) {
+                    ((CRC32) cs).update(buf);
+                } else if (cs instanceof Adler32) {
+                    ((Adler32) cs).update(buf);
+                } else if (cs instanceof BSD) {
+                    ((BSD) cs).update(buf);
+                } else {
+                    if (array == null) {
+                        array = new byte[8192];
+                    }
+                    while (buf.hasRemaining()) {
+                        len = Math.min(buf.remaining(), array.length);
+                        buf.get(array, 0, len);
+                        cs.update(array, 0, len);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(file.getPath(), ex);
+        }
+    }
+
+    private static class DigestTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DigestService service;
+        private final List<File> files;
+        private final byte[][] results;
+        private final int src, dst;
+
+        private DigestTask(DigestService service, List<File> files,
+                byte[][] results, int src, int dst) {
+            this.service = service;
+            this.files = files;
+            this.results = results;
+            this.src = src;
+            this.dst = dst;
+        }
+
+        @Override
+        protected void compute() {
+            int mid;
+
+            if (dst - src > 1) {
+                mid = (src + dst) >>> 1;
+                invokeAll(new DigestTask(service, files, results, src, mid),
+                        new DigestTask(service, files, results, mid, dst));
+                return;
+            }
+            if (src < dst) {
+                results[src] = service.digest(files.get(src));
+            }
+        }
+    }
+}
@@ -17,36 +17,149 @@
 package com.stellaris.util;
 
 import com.stellaris.test.Debug;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.bind.DatatypeConverter;
 
 /**
+ * Remembers the digest of each script file between scans.
+ *
+ * Next to the raw digest, the modification time, size and file key of a
+ * file are stored; a file is only hashed again when one of them has
+ * changed. Files are hashed by a {@link DigestService}, MD5 unless
+ * another algorithm is selected.
+ *
+ * Entries live in flat arrays: a path table with an open-addressing
+ * index, one byte array holding all digests and one long array holding
+ * all metadata, so loading creates a single object per entry.
+ *
+ * Entries are keyed by the path of a file inside the game directory, or
+ * by its absolute path for stores shared by unrelated directories.
+ *
+ * On disk, the store is a binary snapshot plus a journal.
+ * {@link #store()} only appends entries changed since the last store to
+ * the journal, and rewrites the snapshot once the journal has grown too
+ * long. Paths in the snapshot are sorted and share their prefix with the
+ * previous path. Stores written as properties by older versions are
+ * still read.
  *
  * @author donizyo
  */
 public class DigestStore {
 
     private static final String PATH_STORE = "stellaris.dig";
-    private final Properties prop;
+    private static final String PATH_JOURNAL = "stellaris.dig.journal";
+    private static final int MAGIC = 0x53444947;
+    private static final int VERSION = 3;
+    // compact once the journal holds this share of the entries
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN = 1024;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int DEFAULT_CAPACITY = 1024;
+    // mtime, size, key
+    private static final int STRIDE = 3;
+
+    private final File fileStore;
+    private final File fileJournal;
+    // key by absolute path instead of game path
+    private final boolean absolute;
+    private DigestService service;
+    // algorithm of the digests in the table
+    private String algorithm;
+    private String[] paths;
+    private byte[] digests;
+    private long[] metadata;
+    // index + 1 of the path hashed to each slot, 0 if empty
+    private int[] slots;
+    private int count;
+    private int digestLength;
+    // changed since last store, in order of change
+    private final Set<String> dirty;
+    private int journalSize;
+    private boolean compactPending;
+    private int skipped;
+    private int rehashed;
+    private int changed;
 
     public DigestStore() {
-        File file;
+        this(getFileStore(), new File(getUserDir(), PATH_JOURNAL));
+    }
 
-        prop = new Properties();
-        file = getFileStore();
-        if (!file.isFile()) {
-            return;
-        }
-        try (FileInputStream finput = new FileInputStream(file);) {
-            prop.load(finput);
+    public DigestStore(File store, File journal) {
+        this(store, journal, DigestService.getDefault(), false);
+    }
+
+    /**
+     *
+     * @param store
+     * @param journal
+     * @param algorithm see {@link DigestService}; entries stored with
+     * another algorithm are dropped
+     */
+    public DigestStore(File store, File journal, String algorithm) {
+        this(store, journal, new DigestService(algorithm), false);
+    }
+
+    /**
+     *
+     * @param store
+     * @param journal
+     * @param algorithm see {@link DigestService}; entries stored with
+     * another algorithm are dropped
+     * @param absolute key files by their absolute path, so files of any
+     * directory can be stored
+     */
+    public DigestStore(File store, File journal, String algorithm, boolean absolute) {
+        this(store, journal, new DigestService(algorithm), absolute);
+    }
+
+    private DigestStore(File store, File journal, DigestService service,
+            boolean absolute) {
+        fileStore = store;
+        fileJournal = journal;
+        this.absolute = absolute;
+        dirty = new LinkedHashSet<>();
+        this.service = service;
+        algorithm = service.getAlgorithm();
+        clear(DEFAULT_CAPACITY);
+        try {
+            if (fileStore.isFile()) {
+                loadStore();
+            }
+            if (fileJournal.isFile()) {
+                loadJournal();
+            }
         } catch (IOException ex) {
             Logger.getLogger(DigestStore.class.getName()).log(Level.SEVERE, null, ex);
         }
+        if (!algorithm.equals(service.getAlgorithm())) {
+            // stored with another algorithm, the digests can not be compared
+            algorithm = service.getAlgorithm();
+            clear(DEFAULT_CAPACITY);
+            compactPending = true;
+        }
     }
 
     private static File getFileStore() {
@@ -61,35 +174,610 @@ public class DigestStore {
         return file;
     }
 
+    /**
+     * Select the algorithm files are hashed with; entries hashed with
+     * another algorithm are dropped
+     *
+     * @param algorithm see {@link DigestService}
+     */
+    public void setAlgorithm(String algorithm) {
+        if (!algorithm.equals(service.getAlgorithm())) {
+            service = new DigestService(algorithm);
+        }
+        if (!algorithm.equals(this.algorithm)) {
+            this.algorithm = algorithm;
+            clear(DEFAULT_CAPACITY);
+            compactPending = true;
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    private void clear(int capacity) {
+        int n;
 
-    public boolean matches(File file) {
+        n = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+        paths = new String[n];
+        digests = new byte[0];
+        metadata = new long[n * STRIDE];
+        slots = new int[n * 2];
+        count = 0;
+        digestLength = 0;
+    }
+
+    /**
+     *
+     * @param file
+     * @return key of the entry of a file
+     * @throws IllegalArgumentException if the file is not inside a game
+     * directory and the store is not keyed by absolute path
+     */
+    private String getKey(File file) {
         String path;
-        Digest digest;
-        String sum, res;
 
+        if (absolute) {
+            return file.getAbsolutePath().replace('\\', '/');
+        }
         path = ScriptPath.getPath(file);
-        sum = prop.getProperty(path);
-        digest = new Digest(file);
-        res = digest.digest();
+        if (path == null) {
+            throw new IllegalArgumentException(file.getPath());
+        }
+        return path;
+    }
+
+    private static int hash(String path) {
+        int h;
+
+        h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(String path) {
+        int mask, i, idx;
+
+        mask = slots.length - 1;
+        for (i = hash(path) & mask; (idx = slots[i]) != 0; i = (i + 1) & mask) {
+            if (paths[idx - 1].equals(path)) {
+                return idx - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find or add an entry
+     *
+     * @param path
+     * @param digest
+     * @return index of the entry, or -1 if the digest does not fit
+     */
+    private int put(String path, byte[] digest) {
+        int mask, i, idx;
+
+        if (digestLength == 0) {
+            digestLength = digest.length;
+            digests = new byte[paths.length * digestLength];
+        } else if (digest.length != digestLength) {
+            // written with another algorithm
+            return -1;
+        }
+        mask = slots.length - 1;
+        for (i = hash(path) & mask; (idx = slots[i]) != 0; i = (i + 1) & mask) {
+            if (paths[idx - 1].equals(path)) {
+                break;
+            }
+        }
+        if (idx == 0) {
+            if (count == paths.length) {
+                grow();
+                return put(path, digest);
+            }
+            idx = ++count;
+            slots[i] = idx;
+            paths[idx - 1] = path;
+        }
+        --idx;
+        System.arraycopy(digest, 0, digests, idx * digestLength, digestLength);
+        return idx;
+    }
+
+    private void grow() {
+        String[] p;
+        int n, i, mask, j;
+
+        n = paths.length * 2;
+        p = Arrays.copyOf(paths, n);
+        digests = Arrays.copyOf(digests, n * digestLength);
+        metadata = Arrays.copyOf(metadata, n * STRIDE);
+        slots = new int[n * 2];
+        mask = slots.length - 1;
+        for (i = 0; i < count; i++) {
+            for (j = hash(p[i]) & mask; slots[j] != 0; j = (j + 1) & mask);
+            slots[j] = i + 1;
+        }
+        paths = p;
+    }
+
+    private void setMetadata(int idx, long mtime, long size, long key) {
+        idx *= STRIDE;
+        metadata[idx] = mtime;
+        metadata[idx + 1] = size;
+        metadata[idx + 2] = key;
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    private void loadStore() throws IOException {
+        ByteBuffer buf;
+        int n, len, i, shared, plen, idx;
+        char[] path;
+        byte[] digest;
+
+        buf = ByteBuffer.wrap(Files.readAllBytes(fileStore.toPath()));
+        if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+            loadProperties();
+            return;
+        }
+        if (buf.getInt() != VERSION) {
+            // written by another version, start over
+            compactPending = true;
+            return;
+        }
+        path = new char[256];
+        try {
+            len = buf.getShort() & 0xFFFF;
+            algorithm = new String(path, 0, decode(buf, path, 0, len));
+            n = buf.getInt();
+            len = buf.get() & 0xFF;
+            clear(n);
+            digest = new byte[len];
+            for (i = 0; i < n; i++) {
+                // shared prefix, then the rest in modified UTF-8
+                shared = buf.getShort() & 0xFFFF;
+                plen = buf.getShort() & 0xFFFF;
+                if (shared + plen > path.length) {
+                    path = Arrays.copyOf(path, Math.max(path.length * 2, shared + plen));
+                }
+                plen = shared + decode(buf, path, shared, plen);
+                buf.get(digest);
+                idx = put(new String(path, 0, plen), digest);
+                setMetadata(idx, buf.getLong(), buf.getLong(), buf.getLong());
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            // broken snapshot, hash everything again
+            clear(DEFAULT_CAPACITY);
+            throw new IOException(fileStore.getPath(), ex);
+        }
+    }
+
+    /**
+     * Replay the journal; a torn record at its end is ignored
+     *
+     * @throws IOException
+     */
+    private void loadJournal() throws IOException {
+        String path;
+        byte[] digest;
+        int idx;
+
+        try (DataInputStream in = open(fileJournal);) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(algorithm)) {
+                // not appended to, rewritten by the next store
+                compactPending = true;
+                return;
+            }
+            while (true) {
+                path = in.readUTF();
+                digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                idx = put(path, digest);
+                if (idx != -1) {
+                    setMetadata(idx, in.readLong(), in.readLong(), in.readLong());
+                } else {
+                    in.readFully(new byte[8 * STRIDE]);
+                }
+                ++journalSize;
+            }
+        } catch (EOFException ex) {
+        }
+    }
+
+    /**
+     * Read a store written as properties, of either path=digest or
+     * path=digest;mtime;size;key
+     *
+     * @throws IOException
+     */
+    private void loadProperties() throws IOException {
+        Properties prop;
+        String value;
+        String[] meta;
+        int idx;
 
-        if (res.equals(sum)) {
+        prop = new Properties();
+        try (InputStream in = new FileInputStream(fileStore);) {
+            prop.load(in);
+        }
+        clear(prop.size());
+        for (String path : prop.stringPropertyNames()) {
+            value = prop.getProperty(path);
+            meta = value.split(";", 4);
+            try {
+                idx = put(path, DatatypeConverter.parseHexBinary(meta[0]));
+                if (idx == -1) {
+                    continue;
+                }
+                if (meta.length == 4) {
+                    setMetadata(idx, Long.parseLong(meta[1]),
+                            Long.parseLong(meta[2]), fingerprint(meta[3]));
+                } else {
+                    // unknown, hash on first sight
+                    setMetadata(idx, -1, -1, 0);
+                }
+            } catch (IllegalArgumentException ex) {
+            }
+        }
+        // rewrite in binary on next store
+        algorithm = Digest.DEFAULT_ALGORITHM;
+        compactPending = true;
+    }
+
+    /**
+     * Decode a modified UTF-8 string of the given length in bytes
+     *
+     * @return number of chars
+     */
+    private static int decode(ByteBuffer buf, char[] dst, int off, int len) {
+        int end, pos, c, d;
+
+        end = buf.position() + len;
+        pos = off;
+        while (buf.position() < end) {
+            c = buf.get() & 0xFF;
+            if (c < 0x80) {
+                dst[pos++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                d = buf.get() & 0x3F;
+                dst[pos++] = (char) (((c & 0x1F) << 6) | d);
+            } else if ((c & 0xF0) == 0xE0) {
+                d = (buf.get() & 0x3F) << 6;
+                d |= buf.get() & 0x3F;
+                dst[pos++] = (char) (((c & 0x0F) << 12) | d);
+            } else {
+                throw new IllegalArgumentException();
+            }
+        }
+        return pos - off;
+    }
+
+    private static int encode(String str, int off, byte[] dst) {
+        int len, pos, i;
+        char c;
+
+        len = str.length();
+        pos = 0;
+        for (i = off; i < len; i++) {
+            c = str.charAt(i);
+            if (c != 0 && c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | c >> 6);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                dst[pos++] = (byte) (0xE0 | c >> 12);
+                dst[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+
+    private void writeValue(DataOutputStream out, int idx) throws IOException {
+        out.write(digests, idx * digestLength, digestLength);
+        idx *= STRIDE;
+        out.writeLong(metadata[idx]);
+        out.writeLong(metadata[idx + 1]);
+        out.writeLong(metadata[idx + 2]);
+    }
+
+    /**
+     * Check whether a file is unchanged since the last time it was seen,
+     * and remember its current state
+     *
+     * @param file
+     * @return
+     */
+    public boolean matches(File file) {
+        return matches(Collections.singletonList(file), 1)[0];
+    }
+
+    /**
+     * Check many files at once; files whose metadata changed are hashed
+     * concurrently
+     *
+     * @param files
+     * @param parallelism number of hashing threads
+     * @return whether each file is unchanged
+     */
+    public boolean[] matches(List<File> files, int parallelism) {
+        boolean[] res;
+        List<File> stale;
+        List<BasicFileAttributes> staleAttrs;
+        List<Integer> staleIndices;
+        byte[][] results;
+        File file;
+        BasicFileAttributes attrs;
+        int i, idx, meta;
+
+        res = new boolean[files.size()];
+        stale = new ArrayList<>();
+        staleAttrs = new ArrayList<>();
+        staleIndices = new ArrayList<>();
+        for (i = 0; i < res.length; i++) {
+            file = files.get(i);
+            idx = indexOf(getKey(file));
+            try {
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (IOException ex) {
+                attrs = null;
+            }
+            meta = idx * STRIDE;
+            if (idx != -1 && attrs != null
+                    && metadata[meta] == attrs.lastModifiedTime().toMillis()
+                    && metadata[meta + 1] == attrs.size()
+                    && metadata[meta + 2] == fingerprint(attrs.fileKey())) {
+                ++skipped;
+                res[i] = true;
+            } else {
+                stale.add(file);
+                staleAttrs.add(attrs);
+                staleIndices.add(i);
+            }
+        }
+        results = service.digest(stale, parallelism);
+        for (i = 0; i < results.length; i++) {
+            res[staleIndices.get(i)] = update(stale.get(i),
+                    staleAttrs.get(i), results[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Remember the digest of a file
+     *
+     * @param file
+     * @param attrs
+     * @param digest
+     * @return whether the digest is unchanged
+     */
+    private boolean update(File file, BasicFileAttributes attrs, byte[] digest) {
+        String path;
+        int idx, i, off;
+        boolean isSame;
+
+        path = getKey(file);
+        idx = indexOf(path);
+        ++rehashed;
+        isSame = false;
+        if (idx != -1 && digest.length == digestLength) {
+            off = idx * digestLength;
+            isSame = true;
+            for (i = 0; i < digestLength; i++) {
+                if (digests[off + i] != digest[i]) {
+                    isSame = false;
+                    break;
+                }
+            }
+        }
+        idx = put(path, digest);
+        if (idx == -1) {
+            // digest algorithm changed, start over
+            clear(paths.length);
+            compactPending = true;
+            idx = put(path, digest);
+        }
+        if (attrs != null) {
+            setMetadata(idx, attrs.lastModifiedTime().toMillis(),
+                    attrs.size(), fingerprint(attrs.fileKey()));
+        } else {
+            setMetadata(idx, -1, -1, 0);
+        }
+        dirty.add(path);
+
+        if (isSame) {
             return true;
         }
-        prop.setProperty(path, res);
+        ++changed;
         return false;
     }
 
-    public void store() {
-        File file;
+    /**
+     *
+     * @param key file key, or its string form
+     * @return 64-bit FNV-1a hash of the string form, 0 if there is no key
+     */
+    private static long fingerprint(Object key) {
+        String str;
+        long hash;
+        int len, i;
 
-        file = getFileStore();
-        try (FileOutputStream fout = new FileOutputStream(file);) {
-            prop.store(fout, "");
+        if (key == null) {
+            return 0;
+        }
+        str = key.toString();
+        if (str.isEmpty()) {
+            return 0;
+        }
+        hash = 0xCBF29CE484222325L;
+        len = str.length();
+        for (i = 0; i < len; i++) {
+            hash ^= str.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     *
+     * @param file
+     * @return digest remembered by the last call to matches, or null
+     */
+    public String getDigest(File file) {
+        byte[] result;
+
+        result = getResult(file);
+        if (result == null) {
+            return null;
+        }
+        return Digest.toString(result);
+    }
+
+    /**
+     *
+     * @param file
+     * @return raw digest remembered by the last call to matches, or null
+     */
+    public byte[] getResult(File file) {
+        int idx;
+
+        idx = indexOf(getKey(file));
+        if (idx == -1) {
+            return null;
+        }
+        return Arrays.copyOfRange(digests,
+                idx * digestLength, (idx + 1) * digestLength);
+    }
+
+    /**
+     *
+     * @return number of files accepted by their metadata alone
+     */
+    public int getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     *
+     * @return number of files hashed because their metadata changed
+     */
+    public int getRehashedCount() {
+        return rehashed;
+    }
+
+    /**
+     *
+     * @return number of hashed files whose digest changed
+     */
+    public int getChangedCount() {
+        return changed;
+    }
+
+    public void resetCounters() {
+        skipped = 0;
+        rehashed = 0;
+        changed = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Save entries changed since the last store
+     */
+    public void store() {
+        try {
+            if (compactPending || journalSize + dirty.size()
+                    > Math.max(COMPACT_MIN, count / COMPACT_RATIO)) {
+                compact();
+            } else if (!dirty.isEmpty()) {
+                appendJournal();
+            }
+            dirty.clear();
         } catch (IOException ex) {
             Logger.getLogger(DigestStore.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
+    private void appendJournal() throws IOException {
+        boolean isNew;
+
+        isNew = !fileJournal.isFile() || fileJournal.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileJournal, true), BUFFER_SIZE));) {
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(algorithm);
+            }
+            for (String path : dirty) {
+                out.writeUTF(path);
+                out.writeByte(digestLength);
+                writeValue(out, indexOf(path));
+            }
+        }
+        journalSize += dirty.size();
+    }
+
+    /**
+     * Rewrite the snapshot with all entries, then drop the journal
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        File tmp;
+        String[] sorted;
+        String prev;
+        byte[] bytes;
+        int shared, len, max;
+
+        tmp = new File(fileStore.getPath() + ".tmp");
+        // deterministic order, and long shared prefixes
+        sorted = Arrays.copyOf(paths, count);
+        Arrays.sort(sorted);
+        bytes = new byte[256 * 3];
+        prev = "";
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), BUFFER_SIZE));) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm);
+            out.writeInt(count);
+            out.writeByte(digestLength);
+            for (String path : sorted) {
+                max = Math.min(Math.min(prev.length(), path.length()), 0xFFFF);
+                shared = 0;
+                while (shared < max && prev.charAt(shared) == path.charAt(shared)) {
+                    ++shared;
+                }
+                if ((path.length() - shared) * 3 > bytes.length) {
+                    bytes = new byte[(path.length() - shared) * 3];
+                }
+                len = encode(path, shared, bytes);
+                if (len > 0xFFFF) {
+                    throw new IOException("Path too long: " + path);
+                }
+                out.writeShort(shared);
+                out.writeShort(len);
+                out.write(bytes, 0, len);
+                writeValue(out, indexOf(path));
+                prev = path;
+            }
+        }
+        Files.move(tmp.toPath(), fileStore.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(fileJournal.toPath());
+        journalSize = 0;
+        compactPending = false;
+        dirty.clear();
+    }
+
     public static String getUserDir() {
         return System.getProperty("user.dir");
     }
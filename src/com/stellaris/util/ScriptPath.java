@@ -41,17 +41,36 @@ public class ScriptPath {
      * @return 
      */
     public static String getPath(String path) {
-        final String sp = "Stellaris\\";
+        final String sp = "Stellaris/";
         int len;
         int idx;
+        path = path.replace('\\', '/');
         idx = path.indexOf(sp);
         if (idx == -1)
             return null;
         len = sp.length();
         idx += len;
-        return path.substring(idx).replace('\\', '/');
+        return path.substring(idx);
     }
     
+    /**
+     *
+     * @param root
+     * @param file
+     * @return path of file relative to root, or null if it is not inside
+     */
+    public static String getRelativePath(File root, File file) {
+        String prefix, path;
+
+        prefix = root.getAbsolutePath().replace('\\', '/');
+        if (!prefix.endsWith("/"))
+            prefix += '/';
+        path = file.getAbsolutePath().replace('\\', '/');
+        if (!path.startsWith(prefix))
+            return null;
+        return path.substring(prefix.length());
+    }
+
     public static String getModFilePath(File file) {
         String res;
         